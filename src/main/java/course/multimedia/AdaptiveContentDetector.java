@@ -0,0 +1,93 @@
+package course.multimedia;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * In-process version of PySceneDetect's {@code detect-adaptive}, run on the frames of the .rgb file.
+ * Each frame gets a content score, the mean absolute change of hue, saturation and value from the previous frame,
+ * which {@link FeatureStore} computes with {@link #toHsv} and {@link #meanChannelDistance} when the features are built.
+ * A cut is placed where the score is well above the average score of the frames around it.
+ * The result has the same shape as the "Start Frame" column of {@code list-scenes}:
+ * the 1-based first frame of every scene, starting with 1.
+ */
+public class AdaptiveContentDetector {
+    public static double ADAPTIVE_THRESHOLD = 3.0; // score / average score of the window needed for a cut
+    public static double MIN_CONTENT_VAL = 15.0; // lowest score that can be a cut
+    public static int WINDOW_WIDTH = 2; // frames on each side of a frame used for its average
+    public static int MIN_SCENE_LEN = 15; // fewest frames in a scene
+
+    /**
+     * @return the 1-based start frame of every scene, from the content scores saved in the feature store
+     */
+    public static List<Integer> detect(FeatureStore features) {
+        return detectCuts(features.contentScores());
+    }
+
+    // Packed 0xRRGGBB pixels to interleaved 8-bit H, S, V with H in [0, 180), like COLOR_BGR2HSV but with hue truncated to whole degrees
+    static void toHsv(int[] pixels, byte[] hsv) {
+        for (int i = 0, j = 0; i < pixels.length; i++, j += 3) {
+            int r = (pixels[i] >> 16) & 0xff;
+            int g = (pixels[i] >> 8) & 0xff;
+            int b = pixels[i] & 0xff;
+            int v = Math.max(r, Math.max(g, b));
+            int diff = v - Math.min(r, Math.min(g, b));
+
+            int h = 0;
+            if (diff != 0) {
+                if (v == r) h = 60 * (g - b) / diff;
+                else if (v == g) h = 120 + 60 * (b - r) / diff;
+                else h = 240 + 60 * (r - g) / diff;
+                if (h < 0) h += 360;
+            }
+            hsv[j] = (byte) (h / 2);
+            hsv[j + 1] = (byte) (v == 0 ? 0 : (255 * diff + v / 2) / v);
+            hsv[j + 2] = (byte) v;
+        }
+    }
+
+    // Average over H, S and V of the mean absolute difference per pixel
+    static double meanChannelDistance(byte[] previous, byte[] current, int pixelNum) {
+        long hue = 0, saturation = 0, value = 0;
+        for (int j = 0; j < previous.length; j += 3) {
+            hue += Math.abs((previous[j] & 0xff) - (current[j] & 0xff));
+            saturation += Math.abs((previous[j + 1] & 0xff) - (current[j + 1] & 0xff));
+            value += Math.abs((previous[j + 2] & 0xff) - (current[j + 2] & 0xff));
+        }
+        return (hue + saturation + value) / 3.0 / pixelNum;
+    }
+
+    /**
+     * Turns the content scores into 1-based scene start frames.
+     */
+    public static List<Integer> detectCuts(double[] scores) {
+        List<Integer> sceneStarts = new ArrayList<>();
+        if (scores.length == 0) {
+            return sceneStarts;
+        }
+        sceneStarts.add(1);
+
+        int lastCut = 0;
+        for (int i = WINDOW_WIDTH; i < scores.length - WINDOW_WIDTH; i++) {
+            double windowSum = 0;
+            for (int k = i - WINDOW_WIDTH; k <= i + WINDOW_WIDTH; k++) {
+                if (k != i) windowSum += scores[k];
+            }
+            double average = windowSum / (2 * WINDOW_WIDTH);
+
+            double ratio;
+            if (average > 1e-5) {
+                ratio = scores[i] / average;
+            } else {
+                // Nothing moves around this frame, any content change at all is a cut
+                ratio = scores[i] >= MIN_CONTENT_VAL ? 255.0 : 0.0;
+            }
+
+            if (ratio >= ADAPTIVE_THRESHOLD && scores[i] >= MIN_CONTENT_VAL && i - lastCut >= MIN_SCENE_LEN) {
+                sceneStarts.add(i + 1);
+                lastCut = i;
+            }
+        }
+        return sceneStarts;
+    }
+}
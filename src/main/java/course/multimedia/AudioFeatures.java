@@ -0,0 +1,97 @@
+package course.multimedia;
+
+import javax.sound.sampled.AudioFormat;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Per video frame audio features, computed once for the whole track.
+ * Samples are decoded according to the {@link AudioFormat} of the track (sample size, signed, unsigned or float
+ * encoding, byte order) and normalized to [-1, 1]. The RMS is taken over every channel,
+ * and is stored as the audio energy column of {@link FeatureStore}.
+ */
+public class AudioFeatures {
+    // Number of video frames handled by one parallel task
+    private static final int CHUNK_SIZE = 256;
+
+    private final float[] rms;
+
+    private AudioFeatures(int frameNum) {
+        this.rms = new float[frameNum];
+    }
+
+    /**
+     * Extracts the features of every segment of the track in parallel.
+     */
+    public static AudioFeatures extract(AudioTrack track) {
+        int frameNum = track.getSegmentCount();
+        AudioFeatures features = new AudioFeatures(frameNum);
+        int chunkNum = (frameNum + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        IntStream.range(0, chunkNum).parallel().forEach(chunk -> features.extractChunk(track, chunk * CHUNK_SIZE,
+                Math.min(frameNum, (chunk + 1) * CHUNK_SIZE)));
+        return features;
+    }
+
+    private void extractChunk(AudioTrack track, int from, int to) {
+        AudioFormat format = track.getFormat();
+        int samplesPerSegment = track.getBytesPerSegment() / track.getFrameSize();
+        float[] samples = new float[samplesPerSegment * format.getChannels()];
+
+        for (int i = from; i < to; i++) {
+            int count = decode(track.getSegment(i), format, samples);
+
+            double sum = 0;
+            for (int k = 0; k < count; k++) {
+                float s = samples[k];
+                sum += s * s;
+            }
+            // Missing samples at the end of the audio are silence but still count towards the mean
+            rms[i] = (float) Math.sqrt(sum / samples.length);
+        }
+    }
+
+    // Decodes a segment into normalized samples, zero-filling the part that lies past the end of the audio
+    private static int decode(ByteBuffer segment, AudioFormat format, float[] samples) {
+        int bytesPerSample = format.getSampleSizeInBits() / 8;
+        boolean floating = format.getEncoding() == AudioFormat.Encoding.PCM_FLOAT;
+        boolean signed = format.getEncoding() == AudioFormat.Encoding.PCM_SIGNED;
+        boolean bigEndian = format.isBigEndian();
+        float scale = 1f / (1L << (format.getSampleSizeInBits() - 1));
+
+        int count = Math.min(samples.length, segment.limit() / bytesPerSample);
+        for (int i = 0, offset = 0; i < count; i++, offset += bytesPerSample) {
+            long value = 0;
+            for (int b = 0; b < bytesPerSample; b++) {
+                int shift = bigEndian ? (bytesPerSample - 1 - b) * 8 : b * 8;
+                value |= (long) (segment.get(offset + b) & 0xff) << shift;
+            }
+            if (floating) {
+                // IEEE 754 samples are already in [-1, 1]
+                samples[i] = bytesPerSample == 8 ? (float) Double.longBitsToDouble(value) : Float.intBitsToFloat((int) value);
+                continue;
+            }
+            if (signed) {
+                // Sign-extend from the sample size
+                int unused = 64 - bytesPerSample * 8;
+                value = (value << unused) >> unused;
+            } else {
+                value -= 1L << (bytesPerSample * 8 - 1);
+            }
+            samples[i] = value * scale;
+        }
+        Arrays.fill(samples, count, samples.length, 0f);
+        return count;
+    }
+
+    public int size() {
+        return rms.length;
+    }
+
+    /**
+     * @return root mean square of the samples of the video frame, in [0, 1]
+     */
+    public float rms(int frame) {
+        return rms[frame];
+    }
+}
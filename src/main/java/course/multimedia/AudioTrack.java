@@ -0,0 +1,160 @@
+package course.multimedia;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The PCM payload of an audio file, split into one segment per video frame.
+ * For PCM WAV files the data chunk is memory-mapped, other formats are decoded once into a single array.
+ * Segments are read-only views of the payload and are never copied.
+ * The last segments may be shorter than {@link #getBytesPerSegment()} or empty when the audio is shorter
+ * than the video, the missing samples are silence.
+ */
+public class AudioTrack {
+    private final AudioFormat format;
+    private final ByteBuffer data;
+    private final int bytesPerSegment;
+    private final int segmentCount;
+
+    private AudioTrack(AudioFormat format, ByteBuffer data, int segmentCount, int fps) {
+        this.format = format;
+        this.data = data.order(format.isBigEndian() ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+        this.segmentCount = segmentCount;
+        // Number of audio samples that correspond to one video frame
+        int samplesPerVideoFrame = Math.round(format.getSampleRate() / fps);
+        this.bytesPerSegment = samplesPerVideoFrame * format.getFrameSize();
+    }
+
+    /**
+     * Opens an audio file and splits it into one segment per video frame.
+     *
+     * @param file         the audio file
+     * @param segmentCount the number of video frames
+     * @param fps          frames per second of the video
+     */
+    public static AudioTrack open(File file, int segmentCount, int fps) throws IOException, UnsupportedAudioFileException {
+        AudioFormat format = AudioSystem.getAudioFileFormat(file).getFormat();
+        boolean pcm = format.getEncoding() == AudioFormat.Encoding.PCM_SIGNED
+                || format.getEncoding() == AudioFormat.Encoding.PCM_UNSIGNED;
+
+        ByteBuffer data = pcm ? mapWaveData(file, format.getFrameSize()) : null;
+        if (data == null) {
+            // Not a plain PCM WAV file, let AudioSystem decode it once
+            try (AudioInputStream audioInputStream = AudioSystem.getAudioInputStream(file)) {
+                format = audioInputStream.getFormat();
+                data = ByteBuffer.wrap(audioInputStream.readAllBytes());
+            }
+        }
+        return new AudioTrack(format, data, segmentCount, fps);
+    }
+
+    /**
+     * A track of silence covering every video frame, for videos whose audio can not be read.
+     * Playback is timed by the audio line, so the video still plays at its frame rate.
+     *
+     * @param segmentCount the number of video frames
+     * @param fps          frames per second of the video
+     */
+    public static AudioTrack silent(int segmentCount, int fps) {
+        // 8 kHz, 8-bit signed mono keeps the buffer small, zero bytes are silence
+        AudioFormat format = new AudioFormat(8000f, 8, 1, true, false);
+        long bytesPerSegment = Math.round(format.getSampleRate() / fps) * (long) format.getFrameSize();
+        int size = (int) Math.min(Integer.MAX_VALUE, Math.max(0, segmentCount) * bytesPerSegment);
+        return new AudioTrack(format, ByteBuffer.allocateDirect(size), segmentCount, fps);
+    }
+
+    // Walks the RIFF chunks and maps the payload of the "data" chunk, or returns null if the file is not a WAV file
+    private static ByteBuffer mapWaveData(File file, int frameSize) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            ByteBuffer header = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+            if (channel.read(header, 0) < 12 || header.getInt(0) != 0x46464952 || header.getInt(8) != 0x45564157) {
+                return null; // "RIFF" ... "WAVE"
+            }
+
+            long position = 12;
+            ByteBuffer chunk = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+            while (position + 8 <= channel.size()) {
+                chunk.clear();
+                channel.read(chunk, position);
+                int id = chunk.getInt(0);
+                long size = chunk.getInt(4) & 0xffffffffL;
+                position += 8;
+
+                if (id == 0x61746164) { // "data"
+                    // Streamed WAV files leave the size at 0xFFFFFFFF or past the end of the file,
+                    // trust the file length instead; a size of 0 is a real, empty data chunk
+                    long available = channel.size() - position;
+                    boolean sizeSet = size != 0xffffffffL && size <= available;
+                    if (!sizeSet) size = available;
+                    if (size > Integer.MAX_VALUE) {
+                        System.out.println("Audio data larger than 2GB, only the first 2GB are used");
+                        size = Integer.MAX_VALUE;
+                    }
+                    size -= size % frameSize;
+                    return channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+                }
+                // Chunks are padded to an even size
+                position += size + (size & 1);
+            }
+            return null;
+        }
+    }
+
+    public AudioFormat getFormat() {
+        return format;
+    }
+
+    public int getFrameSize() {
+        return format.getFrameSize();
+    }
+
+    public int getBytesPerSegment() {
+        return bytesPerSegment;
+    }
+
+    public int getSegmentCount() {
+        return segmentCount;
+    }
+
+    /**
+     * @return a read-only view of the whole payload
+     */
+    public ByteBuffer getData() {
+        return data.asReadOnlyBuffer().order(data.order());
+    }
+
+    /**
+     * Returns a read-only view of the audio that plays during the given video frame.
+     * The view is shorter than {@link #getBytesPerSegment()} when the audio ends inside the segment.
+     *
+     * @param videoFrame the video frame index
+     * @return the segment, positioned at 0 and in the byte order of the audio format
+     */
+    public ByteBuffer getSegment(int videoFrame) {
+        long start = (long) videoFrame * bytesPerSegment;
+        int offset = (int) Math.min(start, data.limit());
+        int length = Math.min(bytesPerSegment, data.limit() - offset);
+        return data.slice(offset, length).asReadOnlyBuffer().order(data.order());
+    }
+
+    /**
+     * Returns the segment of the given video frame as 16-bit samples, interleaved by channel.
+     * Only valid for 16-bit audio.
+     */
+    public ShortBuffer getShortSegment(int videoFrame) {
+        if (format.getSampleSizeInBits() != 16) {
+            throw new IllegalStateException("Audio is " + format.getSampleSizeInBits() + "-bit, not 16-bit");
+        }
+        return getSegment(videoFrame).asShortBuffer();
+    }
+}
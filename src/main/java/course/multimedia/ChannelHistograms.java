@@ -0,0 +1,173 @@
+package course.multimedia;
+
+import java.util.Arrays;
+
+/**
+ * Pure Java U/V channel histograms and the comparisons used by the shot detectors,
+ * and the 16x16x16 HSV histograms used by scene clustering.
+ * The thresholds were tuned on OpenCV histograms of frames whose R, G, B bytes sat in the slots OpenCV reads as B, G, R,
+ * so the histograms here swap R and B the same way. The U/V histograms follow COLOR_BGR2YUV, calcHist and
+ * NORM_MINMAX normalization; the HSV histograms compute hue in whole degrees and truncate it,
+ * so a pixel can land one hue bin away from where COLOR_BGR2HSV would put it.
+ * None of the methods allocate, so they can run once per frame without creating garbage.
+ */
+public class ChannelHistograms {
+    public static final int BINS = 256;
+    public static final int HSV_BINS = 16 * 16 * 16; // 16 bins for each of H, S and V
+
+    // COLOR_BGR2YUV coefficients in 14-bit fixed point
+    private static final int SHIFT = 14;
+    private static final int HALF = 1 << (SHIFT - 1);
+    private static final int R2Y = 4899;  // 0.299
+    private static final int G2Y = 9617;  // 0.587
+    private static final int B2Y = 1868;  // 0.114
+    private static final int B2U = 8061;  // 0.492
+    private static final int R2V = 14369; // 0.877
+    private static final int DELTA = 128 << SHIFT;
+
+    private static final double EPSILON = 2.220446049250313e-16; // DBL_EPSILON, as used by compareHist
+
+    /**
+     * Counts the U and V values of packed 0xRRGGBB pixels.
+     *
+     * @param pixels  packed pixels of one frame
+     * @param uCounts output, BINS counters for the U channel
+     * @param vCounts output, BINS counters for the V channel
+     */
+    public static void countUV(int[] pixels, int[] uCounts, int[] vCounts) {
+        Arrays.fill(uCounts, 0);
+        Arrays.fill(vCounts, 0);
+        for (int pixel : pixels) {
+            // R and B swapped, see the class comment
+            int b = (pixel >> 16) & 0xff;
+            int g = (pixel >> 8) & 0xff;
+            int r = pixel & 0xff;
+            int y = (r * R2Y + g * G2Y + b * B2Y + HALF) >> SHIFT;
+            uCounts[clamp(((b - y) * B2U + DELTA + HALF) >> SHIFT)]++;
+            vCounts[clamp(((r - y) * R2V + DELTA + HALF) >> SHIFT)]++;
+        }
+    }
+
+    /**
+     * Counts the pixels in each of the 16x16x16 H, S, V bins, H in [0, 180) and S, V in [0, 256).
+     *
+     * @param pixels packed pixels of one frame
+     * @param counts output, HSV_BINS counters indexed by (h * 16 + s) * 16 + v
+     */
+    public static void countHSV(int[] pixels, int[] counts) {
+        Arrays.fill(counts, 0);
+        for (int pixel : pixels) {
+            // R and B swapped, see the class comment
+            int b = (pixel >> 16) & 0xff;
+            int g = (pixel >> 8) & 0xff;
+            int r = pixel & 0xff;
+            int v = Math.max(r, Math.max(g, b));
+            int diff = v - Math.min(r, Math.min(g, b));
+
+            int h = 0;
+            if (diff != 0) {
+                if (v == r) h = 60 * (g - b) / diff;
+                else if (v == g) h = 120 + 60 * (b - r) / diff;
+                else h = 240 + 60 * (r - g) / diff;
+                if (h < 0) h += 360;
+            }
+            int s = v == 0 ? 0 : (255 * diff + v / 2) / v;
+            counts[((h / 2 * 16 / 180) * 16 + (s >> 4)) * 16 + (v >> 4)]++;
+        }
+    }
+
+    /**
+     * Scales the counts so that the histogram has a Euclidean norm of 1, like Core.normalize(hist, hist).
+     */
+    public static void normalizeL2(int[] counts, float[] hist) {
+        double sum = 0;
+        for (int count : counts) {
+            sum += (double) count * count;
+        }
+        double scale = sum > 0 ? 1.0 / Math.sqrt(sum) : 0;
+        for (int i = 0; i < counts.length; i++) {
+            hist[i] = (float) (counts[i] * scale);
+        }
+    }
+
+    /**
+     * @return the mean Y (BT.601 luma) of packed 0xRRGGBB pixels, in [0, 255]
+     */
+    public static double meanLuma(int[] pixels) {
+        long sum = 0;
+        for (int pixel : pixels) {
+            int r = (pixel >> 16) & 0xff;
+            int g = (pixel >> 8) & 0xff;
+            int b = pixel & 0xff;
+            sum += (r * R2Y + g * G2Y + b * B2Y + HALF) >> SHIFT;
+        }
+        return pixels.length == 0 ? 0 : (double) sum / pixels.length;
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : (value > 255 ? 255 : value);
+    }
+
+    /**
+     * Scales the counts linearly so that the smallest bin becomes 0 and the largest becomes {@code BINS},
+     * like Core.normalize(hist, hist, 0, hist.rows(), NORM_MINMAX).
+     */
+    public static void normalizeMinMax(int[] counts, float[] hist) {
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        for (int count : counts) {
+            min = Math.min(min, count);
+            max = Math.max(max, count);
+        }
+        double scale = max > min ? (double) hist.length / (max - min) : 0;
+        for (int i = 0; i < counts.length; i++) {
+            hist[i] = (float) ((counts[i] - min) * scale);
+        }
+    }
+
+    /**
+     * @return the sum of absolute bin differences
+     */
+    public static double difference(float[] h1, float[] h2) {
+        double difference = 0;
+        for (int i = 0; i < h1.length; i++) {
+            difference += Math.abs(h2[i] - h1[i]);
+        }
+        return difference;
+    }
+
+    /**
+     * @return the correlation of the histograms, like HISTCMP_CORREL
+     */
+    public static double correlation(float[] h1, float[] h2) {
+        double s1 = 0, s2 = 0, s11 = 0, s12 = 0, s22 = 0;
+        for (int i = 0; i < h1.length; i++) {
+            double a = h1[i];
+            double b = h2[i];
+            s1 += a;
+            s2 += b;
+            s11 += a * a;
+            s12 += a * b;
+            s22 += b * b;
+        }
+        double scale = 1.0 / h1.length;
+        double num = s12 - s1 * s2 * scale;
+        double denom2 = (s11 - s1 * s1 * scale) * (s22 - s2 * s2 * scale);
+        return Math.abs(denom2) > EPSILON ? num / Math.sqrt(denom2) : 1.0;
+    }
+
+    /**
+     * @return the chi-square distance of the histograms, like HISTCMP_CHISQR
+     */
+    public static double chiSquare(float[] h1, float[] h2) {
+        double result = 0;
+        for (int i = 0; i < h1.length; i++) {
+            double a = h1[i] - h2[i];
+            double b = h1[i];
+            if (Math.abs(b) > EPSILON) {
+                result += a * a / b;
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,243 @@
+package course.multimedia;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+/**
+ * A {@link FrameStore} that keeps every frame resident in a compressed form.
+ * Every {@code keyframeInterval}-th frame is a keyframe, stored as the XOR of each pixel with its left neighbour.
+ * The frames in between are stored as the XOR against the previous frame, which is mostly zero inside a shot.
+ * Both residuals are run-length encoded as (zero run, literal count, literal pixels) groups.
+ * The last decoded frame and a small LRU of fully decoded frames make sequential playback and
+ * forward skips inside a group continue from an earlier frame instead of the keyframe,
+ * and a seek never decodes more than one keyframe interval.
+ */
+public class CompressedFrameStore implements FrameStore {
+    public static final int DEFAULT_KEYFRAME_INTERVAL = 30;
+    public static final int DEFAULT_CACHE_SIZE = 8;
+
+    private final int width;
+    private final int height;
+    private final int keyframeInterval;
+    private final byte[][] encodedFrames;
+    private final Map<Integer, int[]> decodedFrames;
+    private int[] recycled;
+    // The last decoded frame, decoding continues from it when the next request is later in the same group
+    private int[] last;
+    private int lastIndex = -1;
+
+    private CompressedFrameStore(int width, int height, int keyframeInterval, int frameNum, int cacheSize) {
+        this.width = width;
+        this.height = height;
+        this.keyframeInterval = keyframeInterval;
+        this.encodedFrames = new byte[frameNum][];
+        this.decodedFrames = new LinkedHashMap<>(cacheSize * 2, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, int[]> eldest) {
+                if (size() > cacheSize) {
+                    recycled = eldest.getValue();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Compresses every frame of the source store. Groups of frames between two keyframes are
+     * independent of each other and are encoded in parallel.
+     *
+     * @param source           the frames to compress
+     * @param keyframeInterval the distance between two keyframes
+     * @param cacheSize        the number of decoded frames kept in the LRU
+     * @return the compressed store
+     */
+    public static CompressedFrameStore build(FrameStore source, int keyframeInterval, int cacheSize) {
+        CompressedFrameStore store = new CompressedFrameStore(Main.WIDTH, Main.HEIGHT, Math.max(1, keyframeInterval),
+                source.size(), Math.max(1, cacheSize));
+        int groupNum = (source.size() + store.keyframeInterval - 1) / store.keyframeInterval;
+        IntStream.range(0, groupNum).parallel().forEach(group -> store.encodeGroup(source, group));
+        return store;
+    }
+
+    public static CompressedFrameStore build(FrameStore source) {
+        return build(source, DEFAULT_KEYFRAME_INTERVAL, DEFAULT_CACHE_SIZE);
+    }
+
+    private void encodeGroup(FrameStore source, int group) {
+        int pixelNum = width * height;
+        int[] previous = new int[pixelNum];
+        int[] current = new int[pixelNum];
+        int[] residual = new int[pixelNum];
+        byte[] scratch = new byte[pixelNum * 5 + 16];
+
+        int start = group * keyframeInterval;
+        int end = Math.min(start + keyframeInterval, encodedFrames.length);
+        for (int i = start; i < end; i++) {
+            source.readPixels(i, current);
+            if (i == start) {
+                for (int y = 0; y < height; y++) {
+                    int row = y * width;
+                    residual[row] = current[row];
+                    for (int x = 1; x < width; x++) {
+                        residual[row + x] = current[row + x] ^ current[row + x - 1];
+                    }
+                }
+            } else {
+                for (int p = 0; p < pixelNum; p++) {
+                    residual[p] = current[p] ^ previous[p];
+                }
+            }
+            encodedFrames[i] = encode(residual, scratch);
+
+            int[] tmp = previous;
+            previous = current;
+            current = tmp;
+        }
+    }
+
+    private static byte[] encode(int[] residual, byte[] out) {
+        int len = 0;
+        int p = 0;
+        while (p < residual.length) {
+            int zeroStart = p;
+            while (p < residual.length && residual[p] == 0) p++;
+            int literalStart = p;
+            while (p < residual.length && residual[p] != 0) p++;
+
+            len = writeVarint(out, len, literalStart - zeroStart);
+            len = writeVarint(out, len, p - literalStart);
+            for (int i = literalStart; i < p; i++) {
+                int v = residual[i];
+                out[len++] = (byte) (v >> 16);
+                out[len++] = (byte) (v >> 8);
+                out[len++] = (byte) v;
+            }
+        }
+        return Arrays.copyOf(out, len);
+    }
+
+    private static int writeVarint(byte[] out, int pos, int value) {
+        while ((value & ~0x7f) != 0) {
+            out[pos++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out[pos++] = (byte) value;
+        return pos;
+    }
+
+    // XOR the encoded residual into the pixels, untouched pixels keep their value
+    private static void applyResidual(byte[] in, int[] pixels) {
+        int pos = 0;
+        int p = 0;
+        while (pos < in.length) {
+            int zeroRun = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = in[pos++];
+                zeroRun |= (b & 0x7f) << shift;
+                if (b >= 0) break;
+            }
+            int literalCount = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = in[pos++];
+                literalCount |= (b & 0x7f) << shift;
+                if (b >= 0) break;
+            }
+            p += zeroRun;
+            for (int i = 0; i < literalCount; i++, p++) {
+                pixels[p] ^= (in[pos] & 0xff) << 16 | (in[pos + 1] & 0xff) << 8 | (in[pos + 2] & 0xff);
+                pos += 3;
+            }
+        }
+    }
+
+    private void decodeKeyframe(int index, int[] pixels) {
+        Arrays.fill(pixels, 0);
+        applyResidual(encodedFrames[index], pixels);
+        for (int y = 0; y < height; y++) {
+            int row = y * width;
+            for (int x = 1; x < width; x++) {
+                pixels[row + x] ^= pixels[row + x - 1];
+            }
+        }
+    }
+
+    // Decodes a frame starting from the closest earlier frame of its group, the last decoded frame,
+    // a cached frame or the keyframe
+    private synchronized int[] decode(int index) {
+        int[] cached = decodedFrames.get(index);
+        if (cached != null) {
+            return cached;
+        }
+
+        int keyframe = index - index % keyframeInterval;
+        if (last == null) {
+            last = new int[width * height];
+        }
+
+        int from = lastIndex >= keyframe && lastIndex < index ? lastIndex : keyframe;
+        for (int i = index - 1; i > from; i--) {
+            int[] previous = decodedFrames.get(i);
+            if (previous != null) {
+                System.arraycopy(previous, 0, last, 0, last.length);
+                from = i;
+                break;
+            }
+        }
+        if (from == keyframe && lastIndex != keyframe) {
+            decodeKeyframe(keyframe, last);
+        }
+        for (int i = from + 1; i <= index; i++) {
+            applyResidual(encodedFrames[i], last);
+        }
+        lastIndex = index;
+
+        int[] pixels = recycled != null ? recycled : new int[width * height];
+        recycled = null;
+        System.arraycopy(last, 0, pixels, 0, pixels.length);
+        decodedFrames.put(index, pixels);
+        return pixels;
+    }
+
+    /**
+     * @return the total size of the encoded frames in bytes
+     */
+    public long compressedBytes() {
+        long total = 0;
+        for (byte[] frame : encodedFrames) {
+            total += frame.length;
+        }
+        return total;
+    }
+
+    @Override
+    public int size() {
+        return encodedFrames.length;
+    }
+
+    @Override
+    public BufferedImage getFrame(int index) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        readPixels(index, ((DataBufferInt) image.getRaster().getDataBuffer()).getData());
+        return image;
+    }
+
+    @Override
+    public synchronized void readPixels(int index, int[] dst) {
+        int[] pixels = decode(index);
+        System.arraycopy(pixels, 0, dst, 0, pixels.length);
+    }
+
+    @Override
+    public synchronized void close() {
+        decodedFrames.clear();
+        recycled = null;
+        last = null;
+        lastIndex = -1;
+        Arrays.fill(encodedFrames, null);
+    }
+}
@@ -0,0 +1,75 @@
+package course.multimedia;
+
+import java.util.stream.IntStream;
+
+/**
+ * Symmetric distance matrix with a zero diagonal, storing only the upper triangle in a packed float[].
+ * Entry (i, j) with i < j lives at {@code i * (2n - i - 1) / 2 + (j - i - 1)}.
+ */
+public class DistanceMatrix {
+    /**
+     * Distance between two feature vectors.
+     */
+    public interface Metric {
+        double distance(float[] a, float[] b);
+    }
+
+    private final int n;
+    private final float[] packed;
+
+    public DistanceMatrix(int n) {
+        this.n = n;
+        this.packed = new float[(int) ((long) n * (n - 1) / 2)];
+    }
+
+    /**
+     * Computes the distances between every pair of features in parallel.
+     * Row i holds n - i - 1 entries, so row i is paired with row n - 1 - i to give every task the same amount of work.
+     */
+    public static DistanceMatrix compute(float[][] features, Metric metric) {
+        int n = features.length;
+        DistanceMatrix matrix = new DistanceMatrix(n);
+        IntStream.range(0, (n + 1) / 2).parallel().forEach(i -> {
+            matrix.computeRow(features, metric, i);
+            if (n - 1 - i != i) {
+                matrix.computeRow(features, metric, n - 1 - i);
+            }
+        });
+        return matrix;
+    }
+
+    private void computeRow(float[][] features, Metric metric, int i) {
+        int offset = rowOffset(i);
+        for (int j = i + 1; j < n; j++) {
+            packed[offset + j - i - 1] = (float) metric.distance(features[i], features[j]);
+        }
+    }
+
+    private int rowOffset(int i) {
+        return (int) ((long) i * (2L * n - i - 1) / 2);
+    }
+
+    public int size() {
+        return n;
+    }
+
+    public float get(int i, int j) {
+        if (i == j) return 0f;
+        if (i > j) {
+            int tmp = i;
+            i = j;
+            j = tmp;
+        }
+        return packed[rowOffset(i) + j - i - 1];
+    }
+
+    public void set(int i, int j, float distance) {
+        if (i == j) return;
+        if (i > j) {
+            int tmp = i;
+            i = j;
+            j = tmp;
+        }
+        packed[rowOffset(i) + j - i - 1] = distance;
+    }
+}
@@ -0,0 +1,315 @@
+package course.multimedia;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.stream.IntStream;
+
+/**
+ * Per-frame features of a video, computed once from the pixels and the audio and read by every indexing stage.
+ * Each feature is a column file of fixed-width little-endian float records, one record per frame,
+ * which is memory-mapped for reading, so features of long videos stay out of the heap.
+ * A meta file, written after the columns, holds the version, frame count and parameters;
+ * a directory whose meta file is missing or does not match is rebuilt.
+ */
+public class FeatureStore implements AutoCloseable {
+    // Bump whenever a column is added or computed differently
+    static final int VERSION = 1;
+    private static final int MAGIC = 0x46454154; // "FEAT"
+    // Number of frames computed by one parallel task
+    private static final int CHUNK_SIZE = 256;
+
+    // Column names and their number of floats per frame
+    private static final String U = "u";
+    private static final String V = "v";
+    private static final String HSV = "hsv";
+    private static final String LUMA = "luma";
+    private static final String MOTION = "motion";
+    private static final String CONTENT = "content";
+    private static final String AUDIO_ENERGY = "audioEnergy";
+    private static final String[] COLUMNS = {U, V, HSV, LUMA, MOTION, CONTENT, AUDIO_ENERGY};
+    private static final int[] WIDTHS = {ChannelHistograms.BINS, ChannelHistograms.BINS, ChannelHistograms.HSV_BINS, 1, 1, 1, 1};
+
+    private final int frameNum;
+    private final Column u;
+    private final Column v;
+    private final Column hsv;
+    private final Column luma;
+    private final Column motion;
+    private final Column content;
+    private final Column audioEnergy;
+
+    /**
+     * A read-only mapping of one column file. A single mapping is limited to 2GB,
+     * so larger columns are split into several mappings, each of which holds a whole number of frames.
+     */
+    private static class Column {
+        final int width;
+        final int framesPerMapping;
+        final FloatBuffer[] mappings;
+
+        Column(File file, int width, int frameNum) throws IOException {
+            this.width = width;
+            this.framesPerMapping = Integer.MAX_VALUE / (width * Float.BYTES);
+            int mappingNum = (frameNum + framesPerMapping - 1) / framesPerMapping;
+            this.mappings = new FloatBuffer[mappingNum];
+            // The mappings stay valid after the channel is closed
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                for (int i = 0; i < mappingNum; i++) {
+                    long position = (long) i * framesPerMapping * width * Float.BYTES;
+                    int frames = Math.min(framesPerMapping, frameNum - i * framesPerMapping);
+                    mappings[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, (long) frames * width * Float.BYTES)
+                            .order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+                }
+            }
+        }
+
+        float get(int frame) {
+            return mappings[frame / framesPerMapping].get(frame % framesPerMapping * width);
+        }
+
+        void get(int frame, float[] dst) {
+            mappings[frame / framesPerMapping].get(frame % framesPerMapping * width, dst, 0, width);
+        }
+    }
+
+    private FeatureStore(File dir, int frameNum) throws IOException {
+        this.frameNum = frameNum;
+        this.u = new Column(columnFile(dir, U), ChannelHistograms.BINS, frameNum);
+        this.v = new Column(columnFile(dir, V), ChannelHistograms.BINS, frameNum);
+        this.hsv = new Column(columnFile(dir, HSV), ChannelHistograms.HSV_BINS, frameNum);
+        this.luma = new Column(columnFile(dir, LUMA), 1, frameNum);
+        this.motion = new Column(columnFile(dir, MOTION), 1, frameNum);
+        this.content = new Column(columnFile(dir, CONTENT), 1, frameNum);
+        this.audioEnergy = new Column(columnFile(dir, AUDIO_ENERGY), 1, frameNum);
+    }
+
+    /**
+     * Maps the features saved in {@code dir}, computing and saving them first if they are missing or stale.
+     *
+     * @param dir   directory of the column files, or null to compute them into a temporary directory
+     * @param audio the audio track, or null if there is none, in which case every frame has an energy of 0
+     */
+    public static FeatureStore open(File dir, FrameStore video, AudioTrack audio) throws IOException {
+        if (dir == null) {
+            dir = Files.createTempDirectory("features").toFile();
+            // Files are deleted in the reverse order of registration, so the directory goes last
+            dir.deleteOnExit();
+            build(dir, video, audio);
+            new File(dir, "meta").deleteOnExit();
+            for (String column : COLUMNS) {
+                columnFile(dir, column).deleteOnExit();
+            }
+        } else if (!isValid(dir, video.size())) {
+            build(dir, video, audio);
+        }
+        return new FeatureStore(dir, video.size());
+    }
+
+    public int size() {
+        return frameNum;
+    }
+
+    /**
+     * Copies the min-max normalized U channel histogram of the frame into {@code dst}, which holds ChannelHistograms.BINS floats.
+     */
+    public void u(int frame, float[] dst) {
+        u.get(frame, dst);
+    }
+
+    /**
+     * Copies the min-max normalized V channel histogram of the frame into {@code dst}, which holds ChannelHistograms.BINS floats.
+     */
+    public void v(int frame, float[] dst) {
+        v.get(frame, dst);
+    }
+
+    /**
+     * @return the L2 normalized 16x16x16 HSV histogram of the frame
+     */
+    public float[] hsv(int frame) {
+        float[] values = new float[ChannelHistograms.HSV_BINS];
+        hsv.get(frame, values);
+        return values;
+    }
+
+    /**
+     * @return the mean luma of the frame, in [0, 255]
+     */
+    public float meanLuma(int frame) {
+        return luma.get(frame);
+    }
+
+    /**
+     * @return the {@link MotionEngine} score of the frame against the frame before it, NaN for the first frame
+     */
+    public float motion(int frame) {
+        return motion.get(frame);
+    }
+
+    /**
+     * @return the {@link AdaptiveContentDetector} content score of the frame, 0 for the first frame
+     */
+    public float contentScore(int frame) {
+        return content.get(frame);
+    }
+
+    /**
+     * @return the content score of every frame
+     */
+    public double[] contentScores() {
+        double[] scores = new double[frameNum];
+        for (int i = 0; i < frameNum; i++) {
+            scores[i] = content.get(i);
+        }
+        return scores;
+    }
+
+    /**
+     * @return the mean square of the audio samples of the frame, samples in [-1, 1]
+     */
+    public float audioEnergy(int frame) {
+        return audioEnergy.get(frame);
+    }
+
+    @Override
+    public void close() {
+        // The mappings are released by the garbage collector once the store is unreachable
+    }
+
+    // Settings that change the feature values, also part of the index fingerprints that read the features
+    static String parameters() {
+        return "size=" + Main.WIDTH + "x" + Main.HEIGHT + ";motion=" + MotionEngine.CHANNEL_THRESHOLD;
+    }
+
+    private static File columnFile(File dir, String column) {
+        return new File(dir, column + ".f32");
+    }
+
+    private static boolean isValid(File dir, int frameNum) {
+        File meta = new File(dir, "meta");
+        if (!meta.isFile()) {
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(meta))) {
+            return in.readInt() == MAGIC && in.readInt() == VERSION && in.readInt() == frameNum
+                    && in.readUTF().equals(parameters());
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static void build(File dir, FrameStore video, AudioTrack audio) throws IOException {
+        int frameNum = video.size();
+        File meta = new File(dir, "meta");
+        dir.mkdirs();
+        meta.delete();
+
+        AudioFeatures audioFeatures = audio == null ? null : AudioFeatures.extract(audio);
+        FileChannel[] channels = new FileChannel[COLUMNS.length];
+        try {
+            for (int c = 0; c < COLUMNS.length; c++) {
+                channels[c] = FileChannel.open(columnFile(dir, COLUMNS[c]).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING);
+            }
+            int chunkNum = (frameNum + CHUNK_SIZE - 1) / CHUNK_SIZE;
+            IntStream.range(0, chunkNum).parallel().forEach(chunk -> {
+                try {
+                    buildChunk(video, audioFeatures, channels, chunk * CHUNK_SIZE, Math.min(frameNum, (chunk + 1) * CHUNK_SIZE));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            for (FileChannel channel : channels) {
+                if (channel != null) channel.close();
+            }
+        }
+
+        // The meta file marks the columns as complete
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(meta))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(frameNum);
+            out.writeUTF(parameters());
+        }
+    }
+
+    // Computes the features of the frames in [from, to) and writes them at their place in every column
+    private static void buildChunk(FrameStore video, AudioFeatures audioFeatures, FileChannel[] channels,
+                                   int from, int to) throws IOException {
+        int pixelNum = Main.WIDTH * Main.HEIGHT;
+        int[] pixels = new int[pixelNum];
+        int[] uCounts = new int[ChannelHistograms.BINS];
+        int[] vCounts = new int[ChannelHistograms.BINS];
+        int[] hsvCounts = new int[ChannelHistograms.HSV_BINS];
+        float[] channelHistogram = new float[ChannelHistograms.BINS];
+        float[] hsvHistogram = new float[ChannelHistograms.HSV_BINS];
+        byte[] previousHsv = new byte[pixelNum * 3];
+        byte[] currentHsv = new byte[pixelNum * 3];
+        MotionEngine motionEngine = new MotionEngine(Main.WIDTH, Main.HEIGHT);
+
+        ByteBuffer[] buffers = new ByteBuffer[COLUMNS.length];
+        for (int c = 0; c < COLUMNS.length; c++) {
+            buffers[c] = ByteBuffer.allocate((to - from) * WIDTHS[c] * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        // The motion and content scores of the first frame in the chunk need the frame before it
+        if (from > 0) {
+            video.readPixels(from - 1, pixels);
+            motionEngine.next(pixels);
+            AdaptiveContentDetector.toHsv(pixels, previousHsv);
+        }
+        for (int i = from; i < to; i++) {
+            video.readPixels(i, pixels);
+
+            ChannelHistograms.countUV(pixels, uCounts, vCounts);
+            ChannelHistograms.normalizeMinMax(uCounts, channelHistogram);
+            putFloats(buffers[0], channelHistogram);
+            ChannelHistograms.normalizeMinMax(vCounts, channelHistogram);
+            putFloats(buffers[1], channelHistogram);
+
+            ChannelHistograms.countHSV(pixels, hsvCounts);
+            ChannelHistograms.normalizeL2(hsvCounts, hsvHistogram);
+            putFloats(buffers[2], hsvHistogram);
+
+            buffers[3].putFloat((float) ChannelHistograms.meanLuma(pixels));
+            buffers[4].putFloat((float) motionEngine.next(pixels));
+
+            AdaptiveContentDetector.toHsv(pixels, currentHsv);
+            buffers[5].putFloat(i == 0 ? 0 : (float) AdaptiveContentDetector.meanChannelDistance(previousHsv, currentHsv, pixelNum));
+            byte[] tmp = previousHsv;
+            previousHsv = currentHsv;
+            currentHsv = tmp;
+
+            double rms = audioFeatures != null && i < audioFeatures.size() ? audioFeatures.rms(i) : 0;
+            buffers[6].putFloat((float) (rms * rms));
+        }
+
+        for (int c = 0; c < COLUMNS.length; c++) {
+            ByteBuffer buffer = buffers[c];
+            buffer.flip();
+            long position = (long) from * WIDTHS[c] * Float.BYTES;
+            while (buffer.hasRemaining()) {
+                position += channels[c].write(buffer, position);
+            }
+        }
+    }
+
+    private static void putFloats(ByteBuffer buffer, float[] values) {
+        buffer.asFloatBuffer().put(values);
+        buffer.position(buffer.position() + values.length * Float.BYTES);
+    }
+}
@@ -0,0 +1,87 @@
+package course.multimedia;
+
+/**
+ * A set of the frame indices in [from, from + size) stored as bits in a long[], bit i standing for frame from + i.
+ */
+public class FrameBitSet {
+    private final long[] words;
+    private final int from;
+    private final int size;
+
+    public FrameBitSet(int size) {
+        this(0, size);
+    }
+
+    public FrameBitSet(int from, int size) {
+        this.from = from;
+        this.size = size;
+        this.words = new long[(size + 63) >>> 6];
+    }
+
+    /**
+     * @return the first frame the set can hold
+     */
+    public int from() {
+        return from;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Adds a frame index, indices outside [from, from + size) are ignored.
+     */
+    public void set(int index) {
+        index -= from;
+        if (index >= 0 && index < size) {
+            words[index >>> 6] |= 1L << index;
+        }
+    }
+
+    public boolean get(int index) {
+        index -= from;
+        return index >= 0 && index < size && (words[index >>> 6] & (1L << index)) != 0;
+    }
+
+    int wordCount() {
+        return words.length;
+    }
+
+    long word(int i) {
+        return words[i];
+    }
+
+    /**
+     * Adds the frames of a set covering the same range.
+     */
+    public void or(FrameBitSet other) {
+        for (int i = 0; i < words.length; i++) {
+            words[i] |= other.words[i];
+        }
+    }
+
+    /**
+     * Returns a new set that contains every index within {@code radius} (at most 63) of an index of this set.
+     */
+    public FrameBitSet dilate(int radius) {
+        FrameBitSet result = new FrameBitSet(from, size);
+        for (int i = 0; i < words.length; i++) {
+            long word = words[i];
+            long prev = i > 0 ? words[i - 1] : 0;
+            long next = i + 1 < words.length ? words[i + 1] : 0;
+            long dilated = word;
+            for (int k = 1; k <= radius; k++) {
+                // bit j moves to j + k and to j - k, carrying across word boundaries
+                dilated |= (word << k) | (prev >>> (64 - k));
+                dilated |= (word >>> k) | (next << (64 - k));
+            }
+            result.words[i] = dilated;
+        }
+        // Clear the bits past the end of the set
+        if ((size & 63) != 0 && words.length > 0) {
+            result.words[words.length - 1] &= (1L << size) - 1;
+        }
+        return result;
+    }
+}
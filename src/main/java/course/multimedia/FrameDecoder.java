@@ -0,0 +1,54 @@
+package course.multimedia;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes raw .rgb frames (interleaved R, G, B bytes, row by row) into packed TYPE_INT_RGB pixels.
+ * The bytes of a frame are copied in bulk into a reusable scratch buffer and packed straight into
+ * the DataBufferInt backing array, bypassing the per-pixel ColorModel path of {@link BufferedImage#setRGB}.
+ * A decoder is not thread-safe, use one per thread.
+ */
+public class FrameDecoder {
+    private final int width;
+    private final int height;
+    private final byte[] scratch;
+
+    public FrameDecoder(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.scratch = new byte[width * height * 3];
+    }
+
+    /**
+     * Decodes one frame starting at the current position of the source buffer into a new image.
+     * The position of the source buffer is advanced by one frame.
+     */
+    public BufferedImage decode(ByteBuffer src) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        decode(src, image);
+        return image;
+    }
+
+    /**
+     * Decodes one frame into an existing TYPE_INT_RGB image of the same size.
+     */
+    public void decode(ByteBuffer src, BufferedImage dst) {
+        decode(src, ((DataBufferInt) dst.getRaster().getDataBuffer()).getData());
+    }
+
+    /**
+     * Decodes one frame into an array of packed 0xRRGGBB pixels of length width * height.
+     */
+    public void decode(ByteBuffer src, int[] dst) {
+        src.get(scratch, 0, scratch.length);
+        pack(scratch, dst, width * height);
+    }
+
+    private static void pack(byte[] src, int[] dst, int pixels) {
+        for (int i = 0, j = 0; i < pixels; i++, j += 3) {
+            dst[i] = (src[j] & 0xff) << 16 | (src[j + 1] & 0xff) << 8 | (src[j + 2] & 0xff);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package course.multimedia;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+
+/**
+ * Random access to the frames of a video by index.
+ * Implementations decide whether frames are kept in memory or decoded on demand,
+ * so callers should not hold on to the returned images longer than they need them.
+ */
+public interface FrameStore extends AutoCloseable {
+
+    /**
+     * @return the number of frames in the video
+     */
+    int size();
+
+    /**
+     * Returns the frame at the given index as a TYPE_INT_RGB image.
+     *
+     * @param index the frame index, starting from 0
+     * @return the decoded frame
+     */
+    BufferedImage getFrame(int index);
+
+    /**
+     * Copies the packed 0xRRGGBB pixels of the frame at the given index into {@code dst},
+     * which must hold at least width * height values. Implementations should avoid allocating here.
+     *
+     * @param index the frame index, starting from 0
+     * @param dst   the destination array, row by row
+     */
+    default void readPixels(int index, int[] dst) {
+        BufferedImage image = getFrame(index);
+        int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        System.arraycopy(pixels, 0, dst, 0, pixels.length);
+    }
+
+    @Override
+    void close();
+}
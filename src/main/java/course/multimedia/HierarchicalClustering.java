@@ -1,21 +1,13 @@
 package course.multimedia;
 
-import nu.pattern.OpenCV;
-import org.opencv.core.*;
-import org.opencv.imgproc.Imgproc;
-
-import java.awt.image.BufferedImage;
-import java.awt.image.DataBufferByte;
-import java.awt.image.DataBufferInt;
-import java.io.File;
-import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.TreeMap;
+import java.util.stream.IntStream;
 
 public class HierarchicalClustering {
     public static final int WIDTH = 480; // width of the video frames
@@ -40,129 +32,85 @@ public class HierarchicalClustering {
     }
 
 
-    // 将BufferedImage转换为Mat
-    public static Mat bufferedImageToMat(BufferedImage image) {
-        int type = image.getType();
-        if (type == BufferedImage.TYPE_3BYTE_BGR || type == BufferedImage.TYPE_BYTE_GRAY) {
-            byte[] pixels = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
-            Mat mat = new Mat(image.getHeight(), image.getWidth(), type == BufferedImage.TYPE_3BYTE_BGR ? CvType.CV_8UC3 : CvType.CV_8UC1);
-            mat.put(0, 0, pixels);
-            return mat;
-        } else if (type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_INT_BGR) {
-            int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
-            byte[] bytePixels = new byte[pixels.length * 3];
-            int byteIndex = 0;
-            for (int pixel : pixels) {
-                bytePixels[byteIndex++] = (byte) ((pixel >> 16) & 0xff);
-                bytePixels[byteIndex++] = (byte) ((pixel >> 8) & 0xff);
-                bytePixels[byteIndex++] = (byte) (pixel & 0xff);
-            }
-            Mat mat = new Mat(image.getHeight(), image.getWidth(), CvType.CV_8UC3);
-            mat.put(0, 0, bytePixels);
-            return mat;
-        } else {
-            throw new IllegalArgumentException("Unsupported BufferedImage type: " + type);
+    // 计算镜头间的距离
+    public static double calculateDistance(float[] hist1, float[] hist2) {
+        // 使用巴氏距离度量方法，计算两个颜色直方图之间的距离，与 OpenCV 的 compareHist(HISTCMP_BHATTACHARYYA) 一致
+        double s1 = 0, s2 = 0, result = 0;
+        for (int i = 0; i < hist1.length; i++) {
+            s1 += hist1[i];
+            s2 += hist2[i];
+            result += Math.sqrt((double) hist1[i] * hist2[i]);
         }
+        double scale = s1 * s2;
+        scale = Math.abs(scale) > 2.220446049250313e-16 ? 1.0 / Math.sqrt(scale) : 1.0;
+        return Math.sqrt(Math.max(1.0 - result * scale, 0.0));
     }
 
-    // 提取颜色直方图特征
-    public static Mat extractColorHistogram(BufferedImage image) {
-        // 将 BufferedImage 转换为 Mat 格式
-        Mat matImage = bufferedImageToMat(image);
-
-        // 将图像从 BGR 转换为 HSV 色彩空间
-        Mat hsvImage = new Mat();
-        Imgproc.cvtColor(matImage, hsvImage, Imgproc.COLOR_BGR2HSV);
-
-        // 设置直方图的参数
-        int[] histSize = {16, 16, 16}; // 将每个通道分成 16 个 bin
-        float[] histRange = {0, 180, 0, 256, 0, 256}; // H 的范围是 0-180，S 和 V 的范围是 0-256
-        MatOfInt channels = new MatOfInt(0, 1, 2);
-        MatOfFloat ranges = new MatOfFloat(histRange);
-
-        // 计算直方图
-        Mat hist = new Mat();
-        List<Mat> images = new ArrayList<>();
-        images.add(hsvImage);
-        Imgproc.calcHist(images, channels, new Mat(), hist, new MatOfInt(histSize), ranges, false);
-
-        // 归一化直方图
-        Core.normalize(hist, hist);
+    // 凝聚层次聚类
+    public static List<Integer> agglomerativeClustering(FeatureStore features, List<Integer> shotBoundaries, double threshold) {
+        // 并行计算镜头间的距离，只保存上三角
+        float[][] shotFeatures = extractShotFeatures(features, shotBoundaries);
+        DistanceMatrix distances = DistanceMatrix.compute(shotFeatures, HierarchicalClustering::calculateDistance);
 
-        return hist;
-    }
+        // 执行单链接凝聚层次聚类
+        List<Cluster> clusters = singleLinkage(distances, threshold);
 
-    // 计算镜头间的距离
-    public static double calculateDistance(Mat hist1, Mat hist2) {
-        // 使用巴氏距离度量方法，计算两个颜色直方图之间的距离
-        return Imgproc.compareHist(hist1, hist2, Imgproc.CV_COMP_BHATTACHARYYA);
+        // return result;
+        return convertClusterResultToSceneBoundaries(shotBoundaries, toShotClusters(shotBoundaries, clusters));
     }
 
-    // 凝聚层次聚类
-    public static List<Integer> agglomerativeClustering(List<BufferedImage> video, List<Integer> shotBoundaries, double threshold) {
-        // 提取每个镜头的特征
-        List<Mat> shotFeatures = new ArrayList<>();
-        for (Integer boundary : shotBoundaries) {
-            shotFeatures.add(extractColorHistogram(video.get(boundary)));
+    /**
+     * Single-linkage clustering that only links shots starting less than {@code windowFrames} frames apart.
+     * Scenes are contiguous runs of shots, so distant shots are not compared at all:
+     * the distances of each shot to the following shots inside the window are computed in parallel,
+     * and the shots closer than threshold are joined, which takes O(n * W) time and memory
+     * for W shots per window.
+     */
+    public static List<Integer> windowedClustering(FeatureStore features, List<Integer> shotBoundaries, double threshold, int windowFrames) {
+        float[][] shotFeatures = extractShotFeatures(features, shotBoundaries);
+        int n = shotFeatures.length;
+
+        // end[i] is the first shot that starts outside the window of shot i
+        int[] end = new int[n];
+        for (int i = 0, j = 0; i < n; i++) {
+            j = Math.max(j, i + 1);
+            while (j < n && shotBoundaries.get(j) - shotBoundaries.get(i) < windowFrames) j++;
+            end[i] = j;
         }
 
-        // 计算镜头间的距离
-        int n = shotBoundaries.size();
-        double[][] distances = new double[n][n];
-        for (int i = 0; i < n; i++) {
-            for (int j = i + 1; j < n; j++) {
-                distances[i][j] = calculateDistance(shotFeatures.get(i), shotFeatures.get(j));
-                distances[j][i] = distances[i][j];
+        // band[i][k] is the distance between shot i and shot i + k + 1
+        float[][] band = new float[n][];
+        IntStream.range(0, n).parallel().forEach(i -> {
+            band[i] = new float[end[i] - i - 1];
+            for (int k = 0; k < band[i].length; k++) {
+                band[i][k] = (float) calculateDistance(shotFeatures[i], shotFeatures[i + k + 1]);
             }
-        }
+        });
 
-        // 初始化簇
-        List<Cluster> clusters = new ArrayList<>();
+        int[] parent = new int[n];
+        for (int i = 0; i < n; i++) parent[i] = i;
         for (int i = 0; i < n; i++) {
-            Cluster cluster = new Cluster();
-            cluster.addMember(i);
-            clusters.add(cluster);
-        }
-
-        // 执行凝聚层次聚类算法
-        while (true) {
-            // 查找距离最近的两个簇
-            double minDistance = Double.MAX_VALUE;
-            int minI = -1, minJ = -1;
-            for (int i = 0; i < clusters.size(); i++) {
-                for (int j = i + 1; j < clusters.size(); j++) {
-                    double distance = Double.MAX_VALUE;
-                    for (int memberI : clusters.get(i).getMembers()) {
-                        for (int memberJ : clusters.get(j).getMembers()) {
-                            double currentDistance = distances[memberI][memberJ];
-                            if (currentDistance < distance) {
-                                distance = currentDistance;
-                            }
-                        }
-                    }
-                    if (distance < minDistance) {
-                        minDistance = distance;
-                        minI = i;
-                        minJ = j;
-                    }
+            for (int k = 0; k < band[i].length; k++) {
+                if (band[i][k] < threshold) {
+                    union(parent, i, i + k + 1);
                 }
             }
+        }
 
-            // 检查终止条件
-            if (minDistance >= threshold) {
-                break;
-            }
+        return convertClusterResultToSceneBoundaries(shotBoundaries, toShotClusters(shotBoundaries, clusters(parent)));
+    }
 
-            // 合并最近的两个簇
-            Cluster mergedCluster = new Cluster();
-            mergedCluster.getMembers().addAll(clusters.get(minI).getMembers());
-            mergedCluster.getMembers().addAll(clusters.get(minJ).getMembers());
-            clusters.remove(minJ);
-            clusters.remove(minI);
-            clusters.add(mergedCluster);
+    // 从特征库读取每个镜头首帧的 16x16x16 HSV 直方图（L2 归一化，见 ChannelHistograms.countHSV）
+    private static float[][] extractShotFeatures(FeatureStore features, List<Integer> shotBoundaries) {
+        float[][] shotFeatures = new float[shotBoundaries.size()][];
+        for (int i = 0; i < shotFeatures.length; i++) {
+            shotFeatures[i] = features.hsv(shotBoundaries.get(i));
         }
+        return shotFeatures;
+    }
 
-        // 转换聚类结果
+    // 转换聚类结果，将镜头序号换成镜头的首帧
+    private static List<List<Integer>> toShotClusters(List<Integer> shotBoundaries, List<Cluster> clusters) {
         List<List<Integer>> result = new ArrayList<>();
         for (Cluster cluster : clusters) {
             List<Integer> clusterMembers = new ArrayList<>();
@@ -171,9 +119,69 @@ public class HierarchicalClustering {
             }
             result.add(clusterMembers);
         }
+        return result;
+    }
 
-        // return result;
-        return convertClusterResultToSceneBoundaries(shotBoundaries, result);
+    /**
+     * Single-linkage agglomerative clustering that stops once the closest two clusters are at least threshold apart.
+     * Clusters merged that way are exactly the connected components of the edges shorter than threshold,
+     * which are found from a minimum spanning tree (Prim's algorithm on the dense matrix) in O(n^2)
+     * instead of re-scanning every cluster pair after each merge.
+     *
+     * @param distances distance matrix
+     * @param threshold merge distance limit
+     * @return clusters of matrix indices, ordered by their smallest member
+     */
+    public static List<Cluster> singleLinkage(DistanceMatrix distances, double threshold) {
+        int n = distances.size();
+        int[] parent = new int[n];
+        for (int i = 0; i < n; i++) parent[i] = i;
+
+        // Prim: grow the tree from node 0, best[v] is the shortest edge from the tree to v
+        boolean[] inTree = new boolean[n];
+        double[] best = new double[n];
+        int[] bestFrom = new int[n];
+        Arrays.fill(best, Double.MAX_VALUE);
+        if (n > 0) best[0] = 0;
+        for (int step = 0; step < n; step++) {
+            int v = -1;
+            for (int i = 0; i < n; i++) {
+                if (!inTree[i] && (v == -1 || best[i] < best[v])) v = i;
+            }
+            inTree[v] = true;
+            if (step > 0 && best[v] < threshold) {
+                union(parent, v, bestFrom[v]);
+            }
+            for (int u = 0; u < n; u++) {
+                if (!inTree[u] && distances.get(v, u) < best[u]) {
+                    best[u] = distances.get(v, u);
+                    bestFrom[u] = v;
+                }
+            }
+        }
+
+        return clusters(parent);
+    }
+
+    // Groups the union-find nodes by root, ordered by their smallest member
+    private static List<Cluster> clusters(int[] parent) {
+        Map<Integer, Cluster> clustersByRoot = new LinkedHashMap<>();
+        for (int i = 0; i < parent.length; i++) {
+            clustersByRoot.computeIfAbsent(find(parent, i), root -> new Cluster()).addMember(i);
+        }
+        return new ArrayList<>(clustersByRoot.values());
+    }
+
+    private static int find(int[] parent, int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    private static void union(int[] parent, int a, int b) {
+        parent[find(parent, a)] = find(parent, b);
     }
 
     public static List<Integer> convertClusterResultToSceneBoundaries(List<Integer> shotBoundaries, List<List<Integer>> clusterResult) {
@@ -190,7 +198,7 @@ public class HierarchicalClustering {
             if (i == 0) {
                 sceneBoundaries.add(i);
             } else {
-                if (shotToClusterMap.get(shotBoundaries.get(i)) != shotToClusterMap.get(shotBoundaries.get(i - 1))) {
+                if (!Objects.equals(shotToClusterMap.get(shotBoundaries.get(i)), shotToClusterMap.get(shotBoundaries.get(i - 1)))) {
                     sceneBoundaries.add(i);
                 }
             }
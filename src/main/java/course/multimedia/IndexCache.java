@@ -0,0 +1,129 @@
+package course.multimedia;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * On-disk cache of the index trees of videos that were indexed before.
+ * A cache file is named after a hash of the .rgb and .wav contents and holds a version tag,
+ * the indexer parameters and the tree in the {@link IndexTreeIO} binary format,
+ * so a tree is only reused when all three still match.
+ * The hash only reads a few evenly spaced blocks of each file, so looking up a long video takes milliseconds.
+ */
+public class IndexCache {
+    public static boolean ENABLED = true;
+    public static File CACHE_DIR = new File(".index-cache");
+
+    // Bump whenever the file layout or the meaning of the tree changes
+    static final int VERSION = 2;
+    private static final int MAGIC = 0x49445854; // "IDXT"
+    // Blocks of each file read by the content hash
+    private static final int SAMPLE_COUNT = 32;
+    private static final int SAMPLE_SIZE = 64 * 1024;
+
+    /**
+     * @return the cached tree of the video, or null if it was not indexed with the current parameters
+     */
+    public static IndexTree load(File videoFile, File audioFile) {
+        if (!ENABLED) {
+            return null;
+        }
+        try {
+            File file = cacheFile(videoFile, audioFile);
+            if (!file.isFile()) {
+                return null;
+            }
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION || !in.readUTF().equals(Indexer.parameters())) {
+                    return null;
+                }
+                return IndexTreeIO.readBinary(in);
+            }
+        } catch (IOException e) {
+            System.out.println("Error reading index cache: " + e.getMessage());
+            return null;
+        }
+    }
+
+    public static void store(File videoFile, File audioFile, IndexTree indexTree) {
+        if (!ENABLED) {
+            return;
+        }
+        try {
+            File file = cacheFile(videoFile, audioFile);
+            CACHE_DIR.mkdirs();
+            // Write to a temporary file first so that an interrupted write never leaves a broken cache file
+            File tmp = new File(CACHE_DIR, file.getName() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(Indexer.parameters());
+                IndexTreeIO.writeBinary(indexTree, out);
+            }
+            if (!tmp.renameTo(file)) {
+                file.delete();
+                tmp.renameTo(file);
+            }
+        } catch (IOException e) {
+            System.out.println("Error writing index cache: " + e.getMessage());
+        }
+    }
+
+    static File cacheFile(File videoFile, File audioFile) throws IOException {
+        return new File(CACHE_DIR, contentKey(videoFile, audioFile) + ".idx");
+    }
+
+    /**
+     * Hex hash of the sampled contents of both files, the name shared by every cache file of the video.
+     */
+    static String contentKey(File videoFile, File audioFile) throws IOException {
+        MessageDigest digest = sha256();
+        contentHash(videoFile, digest);
+        contentHash(audioFile, digest);
+        StringBuilder key = new StringBuilder();
+        for (byte b : digest.digest()) {
+            key.append(String.format("%02x", b));
+        }
+        return key.toString();
+    }
+
+    // Feeds the length and SAMPLE_COUNT evenly spaced blocks of the file, including the first and the last one
+    static void contentHash(File file, MessageDigest digest) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long length = channel.size();
+            digest.update(ByteBuffer.allocate(Long.BYTES).putLong(0, length));
+
+            ByteBuffer block = ByteBuffer.allocate(SAMPLE_SIZE);
+            long lastStart = Math.max(0, length - SAMPLE_SIZE);
+            int samples = length <= (long) SAMPLE_SIZE * SAMPLE_COUNT ? (int) ((length + SAMPLE_SIZE - 1) / SAMPLE_SIZE) : SAMPLE_COUNT;
+            for (int i = 0; i < samples; i++) {
+                long position = samples == 1 ? 0 : Math.min(lastStart, lastStart * i / (samples - 1));
+                block.clear();
+                while (block.hasRemaining() && channel.read(block, position + block.position()) > 0) {
+                    // read until the block is full or the file ends
+                }
+                block.flip();
+                digest.update(block);
+            }
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
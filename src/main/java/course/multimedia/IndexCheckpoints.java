@@ -0,0 +1,191 @@
+package course.multimedia;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Saves the output of each indexing stage (shot boundaries, scene boundaries, sub-shots) next to the index cache,
+ * so a crash or a parameter change only re-runs the stages after the last valid checkpoint.
+ * Each checkpoint stores the fingerprint of its inputs, the parameters of its stage and of the stages it depends on,
+ * and is only used when that fingerprint still matches.
+ */
+public class IndexCheckpoints {
+    public static boolean ENABLED = true;
+
+    // Bump whenever the file layout or the meaning of a stage output changes
+    static final int VERSION = 1;
+    private static final int MAGIC = 0x49445843; // "IDXC"
+
+    static final String SHOTS = "shots";
+    static final String SCENES = "scenes";
+    static final String SUBSHOTS = "subshots";
+
+    // Hash of the .rgb and .wav contents, null when checkpoints are off
+    private final String contentKey;
+
+    private IndexCheckpoints(String contentKey) {
+        this.contentKey = contentKey;
+    }
+
+    /**
+     * Checkpoints of the given video, or no checkpoints at all if the files can not be read.
+     */
+    public static IndexCheckpoints open(File videoFile, File audioFile) {
+        if (!ENABLED) {
+            return none();
+        }
+        try {
+            return new IndexCheckpoints(IndexCache.contentKey(videoFile, audioFile));
+        } catch (IOException e) {
+            System.out.println("Error hashing the input files, indexing without checkpoints: " + e.getMessage());
+            return none();
+        }
+    }
+
+    /**
+     * Checkpoints that never load or save anything.
+     */
+    public static IndexCheckpoints none() {
+        return new IndexCheckpoints(null);
+    }
+
+    /**
+     * @return the boundaries saved by the stage with this fingerprint, or null
+     */
+    public List<Integer> loadBoundaries(String stage, String fingerprint) {
+        DataInputStream in = open(stage, fingerprint);
+        if (in == null) {
+            return null;
+        }
+        try (DataInputStream input = in) {
+            return readInts(input);
+        } catch (IOException e) {
+            System.out.println("Error reading " + stage + " checkpoint: " + e.getMessage());
+            return null;
+        }
+    }
+
+    public void storeBoundaries(String stage, String fingerprint, List<Integer> boundaries) {
+        save(stage, fingerprint, out -> writeInts(out, boundaries));
+    }
+
+    /**
+     * @return the sub-shots saved with this fingerprint, or null
+     */
+    public Map<Integer, List<Integer>> loadSubshots(String fingerprint) {
+        DataInputStream in = open(SUBSHOTS, fingerprint);
+        if (in == null) {
+            return null;
+        }
+        try (DataInputStream input = in) {
+            int shotNum = input.readInt();
+            Map<Integer, List<Integer>> subShots = new HashMap<>(shotNum * 2);
+            for (int i = 0; i < shotNum; i++) {
+                subShots.put(input.readInt(), readInts(input));
+            }
+            return subShots;
+        } catch (IOException e) {
+            System.out.println("Error reading " + SUBSHOTS + " checkpoint: " + e.getMessage());
+            return null;
+        }
+    }
+
+    public void storeSubshots(String fingerprint, Map<Integer, List<Integer>> subShots) {
+        save(SUBSHOTS, fingerprint, out -> {
+            // sorted by shot start so that the same sub-shots always give the same file
+            Map<Integer, List<Integer>> sorted = new TreeMap<>(subShots);
+            out.writeInt(sorted.size());
+            for (Map.Entry<Integer, List<Integer>> entry : sorted.entrySet()) {
+                out.writeInt(entry.getKey());
+                writeInts(out, entry.getValue());
+            }
+        });
+    }
+
+    /**
+     * @return the directory of the video's {@link FeatureStore}, or null when checkpoints are off
+     */
+    public File featureDir() {
+        return contentKey == null ? null : new File(IndexCache.CACHE_DIR, contentKey + ".features");
+    }
+
+    private interface Body {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private File file(String stage) {
+        return new File(IndexCache.CACHE_DIR, contentKey + "." + stage);
+    }
+
+    // Opens the checkpoint positioned at its data, or returns null if there is none with this fingerprint
+    private DataInputStream open(String stage, String fingerprint) {
+        if (contentKey == null || !file(stage).isFile()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file(stage))));
+            if (in.readInt() == MAGIC && in.readInt() == VERSION && in.readUTF().equals(fingerprint)) {
+                return in;
+            }
+            in.close();
+        } catch (IOException e) {
+            System.out.println("Error reading " + stage + " checkpoint: " + e.getMessage());
+            try {
+                if (in != null) in.close();
+            } catch (IOException ignored) {
+            }
+        }
+        return null;
+    }
+
+    private void save(String stage, String fingerprint, Body body) {
+        if (contentKey == null) {
+            return;
+        }
+        File file = file(stage);
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            IndexCache.CACHE_DIR.mkdirs();
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(fingerprint);
+                body.write(out);
+            }
+            if (!tmp.renameTo(file)) {
+                file.delete();
+                tmp.renameTo(file);
+            }
+        } catch (IOException e) {
+            System.out.println("Error writing " + stage + " checkpoint: " + e.getMessage());
+        }
+    }
+
+    private static void writeInts(DataOutputStream out, List<Integer> values) throws IOException {
+        out.writeInt(values.size());
+        for (int value : values) {
+            out.writeInt(value);
+        }
+    }
+
+    private static List<Integer> readInts(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        List<Integer> values = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            values.add(in.readInt());
+        }
+        return values;
+    }
+}
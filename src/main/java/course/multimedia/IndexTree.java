@@ -1,5 +1,6 @@
 package course.multimedia;
 
+import java.util.ArrayList;
 import java.util.List;
 
 public class IndexTree {
@@ -23,8 +24,17 @@ public class IndexTree {
         }
     }
 
+    // Levels of the tree below the root
+    public static final int SCENE = 1;
+    public static final int SHOT = 2;
+    public static final int SUBSHOT = 3;
+
     Section root;
 
+    // Sections of each level in frame order and their start frames, built on the first lookup
+    private Section[][] levelSections;
+    private int[][] levelStarts;
+
     public IndexTree(int frameNum) {
         if (frameNum == 0) {
             root = new Section(0, 0);
@@ -34,8 +44,101 @@ public class IndexTree {
         }
     }
 
+    /**
+     * @return the number of sections on the level
+     */
+    public int sectionCount(int level) {
+        return levels()[level].length;
+    }
+
+    /**
+     * @return the {@code index}-th section of the level, in frame order
+     */
+    public Section section(int level, int index) {
+        return levels()[level][index];
+    }
+
+    /**
+     * Finds the section of the level that contains the frame with a binary search over the level's start frames.
+     * Sections of a level do not overlap, but a level can have gaps, e.g. shots without sub-shots.
+     *
+     * @return the index of the section in frame order, or -1 if no section of the level contains the frame
+     */
+    public int sectionAt(int level, int frame) {
+        levels();
+        int i = lastStartAtOrBefore(levelStarts[level], frame);
+        return i >= 0 && frame <= levelSections[level][i].endIndex ? i : -1;
+    }
+
+    /**
+     * @return the first start frame of a section of the level after {@code frame}, or -1 if there is none
+     */
+    public int nextBoundary(int level, int frame) {
+        levels();
+        int[] starts = levelStarts[level];
+        int i = lastStartAtOrBefore(starts, frame) + 1;
+        return i < starts.length ? starts[i] : -1;
+    }
+
+    /**
+     * @return the last start frame of a section of the level before {@code frame}, or -1 if there is none
+     */
+    public int previousBoundary(int level, int frame) {
+        levels();
+        int i = lastStartAtOrBefore(levelStarts[level], frame - 1);
+        return i >= 0 ? levelStarts[level][i] : -1;
+    }
+
+    // Index of the last start frame <= frame, or -1
+    private static int lastStartAtOrBefore(int[] starts, int frame) {
+        int lo = 0, hi = starts.length - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (starts[mid] <= frame) lo = mid + 1;
+            else hi = mid - 1;
+        }
+        return hi;
+    }
+
+    // The levels are flattened once, so the tree must be complete before the first lookup
+    private synchronized Section[][] levels() {
+        if (levelSections == null) {
+            List<List<Section>> levels = new ArrayList<>();
+            for (int level = 0; level <= SUBSHOT; level++) {
+                levels.add(new ArrayList<>());
+            }
+            collect(root, 0, levels);
+
+            Section[][] sections = new Section[levels.size()][];
+            int[][] starts = new int[levels.size()][];
+            for (int level = 0; level < sections.length; level++) {
+                sections[level] = levels.get(level).toArray(new Section[0]);
+                starts[level] = new int[sections[level].length];
+                for (int i = 0; i < sections[level].length; i++) {
+                    starts[level][i] = sections[level][i].startIndex;
+                }
+            }
+            levelStarts = starts;
+            levelSections = sections;
+        }
+        return levelSections;
+    }
+
+    // Depth-first, so the sections of every level are added in frame order
+    private static void collect(Section section, int level, List<List<Section>> levels) {
+        if (section == null || level > SUBSHOT) {
+            return;
+        }
+        levels.get(level).add(section);
+        if (section.children != null) {
+            for (Section child : section.children) {
+                collect(child, level + 1, levels);
+            }
+        }
+    }
+
     /***
-     * Build the test case index tree from a json file.
+     * Shape of the tree, see IndexTreeIO for reading and writing it as JSON or binary.
      *                   Root
      *      /             |           \
      *    Scene1       Scene2        Scene3...
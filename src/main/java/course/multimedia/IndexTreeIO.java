@@ -0,0 +1,384 @@
+package course.multimedia;
+
+import java.io.BufferedWriter;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+
+/**
+ * Reads and writes the Root -> Scene -> Shot -> Sub-shot hierarchy of an {@link IndexTree}.
+ * Both formats are streamed section by section, without building any intermediate document.
+ * <p>
+ * The binary format stores each section as varints: the count of its children plus one (0 for a leaf without a list),
+ * then for every child the zigzag difference between its start and the frame after the previous sibling
+ * (or the parent's start), and its length minus one. Sections usually follow each other directly,
+ * so most sections take two or three bytes.
+ * <p>
+ * The JSON format nests {@code {"startIndex": 0, "endIndex": 99, "children": [...]}} objects,
+ * leaving out {@code children} for leaves.
+ */
+public class IndexTreeIO {
+    private static final int MAGIC = 0x49445842; // "IDXB"
+    private static final int VERSION = 1;
+
+    // ==================== Binary ====================
+
+    public static void writeBinary(IndexTree indexTree, OutputStream out) throws IOException {
+        writeRawInt(out, MAGIC);
+        writeVarint(out, VERSION);
+        writeVarint(out, indexTree.root.startIndex);
+        writeVarint(out, indexTree.root.endIndex - indexTree.root.startIndex);
+        writeChildren(out, indexTree.root);
+    }
+
+    public static IndexTree readBinary(InputStream in) throws IOException {
+        if (readRawInt(in) != MAGIC) {
+            throw new IOException("Not a binary index tree");
+        }
+        int version = readVarint(in);
+        if (version != VERSION) {
+            throw new IOException("Unsupported binary index tree version " + version);
+        }
+        int start = readVarint(in);
+        IndexTree.Section root = new IndexTree.Section(start, start + readVarint(in));
+        readChildren(in, root);
+        return newTree(root);
+    }
+
+    private static void writeChildren(OutputStream out, IndexTree.Section section) throws IOException {
+        if (section.children == null) {
+            writeVarint(out, 0);
+            return;
+        }
+        writeVarint(out, section.children.size() + 1);
+        int expectedStart = section.startIndex;
+        for (IndexTree.Section child : section.children) {
+            writeVarint(out, zigzag(child.startIndex - expectedStart));
+            writeVarint(out, child.endIndex - child.startIndex);
+            writeChildren(out, child);
+            expectedStart = child.endIndex + 1;
+        }
+    }
+
+    private static void readChildren(InputStream in, IndexTree.Section section) throws IOException {
+        int childCount = readVarint(in) - 1;
+        if (childCount < 0) {
+            return;
+        }
+        section.children = new ArrayList<>(childCount);
+        int expectedStart = section.startIndex;
+        for (int i = 0; i < childCount; i++) {
+            int start = expectedStart + unzigzag(readVarint(in));
+            IndexTree.Section child = new IndexTree.Section(start, start + readVarint(in));
+            readChildren(in, child);
+            section.children.add(child);
+            expectedStart = child.endIndex + 1;
+        }
+    }
+
+    private static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    // 7 bits per byte, lowest bits first, the high bit marks that more bytes follow
+    private static void writeVarint(OutputStream out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarint(InputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static void writeRawInt(OutputStream out, int value) throws IOException {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    private static int readRawInt(InputStream in) throws IOException {
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            value = (value << 8) | b;
+        }
+        return value;
+    }
+
+    // ==================== JSON ====================
+
+    public static void writeJson(IndexTree indexTree, File file) throws IOException {
+        try (Writer writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+            writeJson(indexTree, writer);
+        }
+    }
+
+    public static IndexTree readJson(File file) throws IOException {
+        try (Reader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            return readJson(reader);
+        }
+    }
+
+    /**
+     * Writes the tree with one section per line, indented by its depth.
+     */
+    public static void writeJson(IndexTree indexTree, Writer writer) throws IOException {
+        Writer out = writer instanceof BufferedWriter ? writer : new BufferedWriter(writer);
+        writeSection(out, indexTree.root, 0);
+        out.write('\n');
+        out.flush();
+    }
+
+    private static void writeSection(Writer out, IndexTree.Section section, int depth) throws IOException {
+        out.write("{\"startIndex\": ");
+        out.write(Integer.toString(section.startIndex));
+        out.write(", \"endIndex\": ");
+        out.write(Integer.toString(section.endIndex));
+        if (section.children != null) {
+            out.write(", \"children\": [");
+            for (int i = 0; i < section.children.size(); i++) {
+                out.write(i == 0 ? "\n" : ",\n");
+                indent(out, depth + 1);
+                writeSection(out, section.children.get(i), depth + 1);
+            }
+            if (!section.children.isEmpty()) {
+                out.write('\n');
+                indent(out, depth);
+            }
+            out.write(']');
+        }
+        out.write('}');
+    }
+
+    private static void indent(Writer out, int depth) throws IOException {
+        for (int i = 0; i < depth; i++) {
+            out.write("  ");
+        }
+    }
+
+    /**
+     * Reads a tree written by {@link #writeJson(IndexTree, Writer)}. Unknown keys are skipped.
+     */
+    public static IndexTree readJson(Reader reader) throws IOException {
+        JsonReader in = new JsonReader(reader);
+        IndexTree.Section root = in.readSection();
+        if (in.peek() != -1) {
+            throw in.error("Unexpected content after the root section");
+        }
+        return newTree(root);
+    }
+
+    private static IndexTree newTree(IndexTree.Section root) {
+        IndexTree indexTree = new IndexTree(root.endIndex + 1);
+        indexTree.root = root;
+        return indexTree;
+    }
+
+    /**
+     * A pull parser over the characters of the reader, reading sections straight into {@link IndexTree.Section}s.
+     * Characters are read in blocks into a reused buffer, so parsing does not allocate per character.
+     */
+    private static class JsonReader {
+        private final Reader reader;
+        private final char[] buffer = new char[8192];
+        private int bufferPosition;
+        private int bufferLimit;
+        private final StringBuilder key = new StringBuilder();
+        private int next = -2; // the character after the last one consumed, -2 before the first read
+        private long position;
+
+        JsonReader(Reader reader) {
+            this.reader = reader;
+        }
+
+        IndexTree.Section readSection() throws IOException {
+            expect('{');
+            int start = -1, end = -1;
+            ArrayList<IndexTree.Section> children = null;
+            if (peek() != '}') {
+                do {
+                    readKey();
+                    expect(':');
+                    if (equalsKey("startIndex")) {
+                        start = readInt();
+                    } else if (equalsKey("endIndex")) {
+                        end = readInt();
+                    } else if (equalsKey("children")) {
+                        children = readChildren();
+                    } else {
+                        skipValue();
+                    }
+                } while (consumeIf(','));
+            }
+            expect('}');
+            if (start < 0 || end < start) {
+                throw error("Section without a valid startIndex and endIndex");
+            }
+            IndexTree.Section section = new IndexTree.Section(start, end);
+            section.children = children;
+            return section;
+        }
+
+        private ArrayList<IndexTree.Section> readChildren() throws IOException {
+            ArrayList<IndexTree.Section> children = new ArrayList<>();
+            expect('[');
+            if (peek() != ']') {
+                do {
+                    children.add(readSection());
+                } while (consumeIf(','));
+            }
+            expect(']');
+            return children;
+        }
+
+        private void readKey() throws IOException {
+            expect('"');
+            key.setLength(0);
+            int c;
+            while ((c = read()) != '"') {
+                if (c == -1) throw error("Unterminated string");
+                if (c == '\\') c = read();
+                key.append((char) c);
+            }
+        }
+
+        private boolean equalsKey(String name) {
+            return key.length() == name.length() && key.indexOf(name) == 0;
+        }
+
+        private int readInt() throws IOException {
+            skipWhitespace();
+            boolean negative = consumeIf('-');
+            if (peek() < '0' || peek() > '9') {
+                throw error("Expected a number");
+            }
+            long value = 0;
+            while (current() >= '0' && current() <= '9') {
+                value = value * 10 + (read() - '0');
+                if (value > Integer.MAX_VALUE) throw error("Number out of range");
+            }
+            if (current() == '.' || current() == 'e' || current() == 'E') {
+                throw error("Expected an integer");
+            }
+            return (int) (negative ? -value : value);
+        }
+
+        // Skips a string, number, literal, array or object
+        private void skipValue() throws IOException {
+            int c = peek();
+            if (c == '"') {
+                readKey();
+            } else if (c == '{' || c == '[') {
+                int depth = 0;
+                boolean inString = false;
+                do {
+                    c = read();
+                    if (c == -1) throw error("Unterminated value");
+                    if (inString) {
+                        if (c == '\\') read();
+                        else if (c == '"') inString = false;
+                    } else if (c == '"') {
+                        inString = true;
+                    } else if (c == '{' || c == '[') {
+                        depth++;
+                    } else if (c == '}' || c == ']') {
+                        depth--;
+                    }
+                } while (depth > 0);
+            } else {
+                while (c != -1 && c != ',' && c != '}' && c != ']' && !Character.isWhitespace(c)) {
+                    read();
+                    c = current();
+                }
+            }
+        }
+
+        private void expect(char expected) throws IOException {
+            skipWhitespace();
+            if (read() != expected) {
+                throw error("Expected '" + expected + "'");
+            }
+        }
+
+        private boolean consumeIf(char expected) throws IOException {
+            skipWhitespace();
+            if (peek() == expected) {
+                read();
+                return true;
+            }
+            return false;
+        }
+
+        // The next character that is not whitespace, without consuming it
+        int peek() throws IOException {
+            skipWhitespace();
+            return next;
+        }
+
+        // The next character, whitespace included, without consuming it
+        private int current() throws IOException {
+            if (next == -2) next = nextChar();
+            return next;
+        }
+
+        private void skipWhitespace() throws IOException {
+            current();
+            while (next == ' ' || next == '\n' || next == '\r' || next == '\t') {
+                next = nextChar();
+                position++;
+            }
+        }
+
+        private int read() throws IOException {
+            int c = current();
+            next = nextChar();
+            position++;
+            return c;
+        }
+
+        private int nextChar() throws IOException {
+            if (bufferPosition == bufferLimit) {
+                bufferLimit = reader.read(buffer, 0, buffer.length);
+                bufferPosition = 0;
+                if (bufferLimit <= 0) {
+                    bufferLimit = 0;
+                    return -1;
+                }
+            }
+            return buffer[bufferPosition++];
+        }
+
+        IOException error(String message) {
+            return new IOException(message + " at character " + position);
+        }
+    }
+}
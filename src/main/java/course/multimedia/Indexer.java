@@ -1,192 +1,221 @@
 package course.multimedia;
 
-import java.awt.image.BufferedImage;
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Supplier;
 
 public class Indexer {
     public static final int WIDTH = 480; // width of the video frames
     public static final int HEIGHT = 270; // height of the video frames
     public static int FPS = 30; // frames per second of the video
-    public static int FRAME_SIZE = 4;
-    public static int SAMPLING_RATE = 44100;
+    // Change of the mean square audio level (samples in [-1, 1]) between two frames that starts a sub-shot
+    public static double AUDIO_ENERGY_THRESHOLD = 0.0048;
+    // Seconds after the start of a shot in which the following shots are compared with it during scene clustering,
+    // 0 compares every pair of shots
+    public static int SCENE_WINDOW = 0;
+    // Bhattacharyya distance below which two shots are put in the same scene
+    public static double SCENE_THRESHOLD = 0.5;
+    public static boolean PARALLEL_SUBSHOTS = true; // search the shots for sub-shots in parallel
+
+    public static IndexTree index(FrameStore video, AudioTrack audio) {
+        return index(video, audio, IndexCheckpoints.none());
+    }
 
-    public static String pySceneDetectPath = "/opt/homebrew/Caskroom/miniforge/base/envs/scene-detection/bin/scenedetect";
+    /**
+     * Runs the indexing stages, each one starting from its checkpoint when its inputs and parameters did not change.
+     */
+    public static IndexTree index(FrameStore video, AudioTrack audio, IndexCheckpoints checkpoints) {
+        Indexer indexer = new Indexer();
+        // The per-frame features are only computed or mapped once a stage actually has to run
+        FeatureStore[] features = new FeatureStore[1];
+        Supplier<FeatureStore> featureStore = () -> {
+            if (features[0] == null) {
+                try {
+                    features[0] = FeatureStore.open(checkpoints.featureDir(), video, audio);
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Error building the frame features", e);
+                }
+            }
+            return features[0];
+        };
 
-    public static IndexTree index(String videoPath, List<BufferedImage> video, List<byte[]> audio) {
-        String videoPathPrefix = videoPath.substring(0, videoPath.lastIndexOf("."));
-        String[] segs = videoPathPrefix.split("/");
-        String csvFilePath = segs[segs.length - 1] + "-Scenes.csv";
-        String mp4FilePath = videoPathPrefix + ".mp4";
+        String shotFingerprint = shotParameters();
+        List<Integer> shotBoundaries = checkpoints.loadBoundaries(IndexCheckpoints.SHOTS, shotFingerprint);
+        if (shotBoundaries == null) {
+            shotBoundaries = indexer.shotBoundaryDetection(featureStore.get());
+            // List<Integer> shotBoundaries = getReadyPlayerOneShots();
+            checkpoints.storeBoundaries(IndexCheckpoints.SHOTS, shotFingerprint, shotBoundaries);
+        }
 
-        runPySceneDetect(mp4FilePath);
+        String sceneFingerprint = shotFingerprint + "|" + sceneParameters();
+        List<Integer> sceneBoundaries = checkpoints.loadBoundaries(IndexCheckpoints.SCENES, sceneFingerprint);
+        if (sceneBoundaries == null) {
+            sceneBoundaries = indexer.sceneClustering(featureStore.get(), shotBoundaries);
+            checkpoints.storeBoundaries(IndexCheckpoints.SCENES, sceneFingerprint, sceneBoundaries);
+        }
 
-        Indexer indexer = new Indexer();
-        List<Integer> shotBoundaries = indexer.shotBoundaryDetection(csvFilePath, video, audio);
-        // List<Integer> shotBoundaries = getReadyPlayerOneShots();
-        List<Integer> sceneBoundaries = indexer.sceneClustering(video, shotBoundaries);
-        Map<Integer, List<Integer>> subShots = indexer.subshotDetection(video, audio, shotBoundaries);
+        String subshotFingerprint = shotFingerprint + "|" + subshotParameters();
+        Map<Integer, List<Integer>> subShots = checkpoints.loadSubshots(subshotFingerprint);
+        if (subShots == null) {
+            subShots = indexer.subshotDetection(featureStore.get(), shotBoundaries);
+            checkpoints.storeSubshots(subshotFingerprint, subShots);
+        }
 
+        if (features[0] != null) {
+            features[0].close();
+        }
         return indexer.buildIndexTree(video.size(), shotBoundaries, sceneBoundaries, subShots);
     }
 
-    public static void runPySceneDetect(String mp4FilePath) {
-        String[] command = {
-                pySceneDetectPath,
-                "-i",
-                mp4FilePath,
-                "detect-adaptive",
-                "list-scenes"
-        };
+    /**
+     * Every setting that changes the index tree, used to tell whether a cached tree is still valid.
+     */
+    public static String parameters() {
+        return shotParameters() + ";" + sceneParameters() + ";" + subshotParameters();
+    }
 
-        try {
-            // 使用ProcessBuilder执行命令
-            ProcessBuilder processBuilder = new ProcessBuilder(command);
-            Process process = processBuilder.start();
-
-            // 读取命令输出
-            BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
-            String line;
-            while ((line = reader.readLine()) != null) {
-                System.out.println(line);
-            }
+    // Settings of each stage, a stage's checkpoint also depends on the settings of the stages it reads from
+    static String shotParameters() {
+        return "features=" + FeatureStore.VERSION + "," + FeatureStore.parameters()
+                + ";fps=" + FPS
+                + ";adaptive=" + AdaptiveContentDetector.ADAPTIVE_THRESHOLD + "," + AdaptiveContentDetector.MIN_CONTENT_VAL
+                + "," + AdaptiveContentDetector.WINDOW_WIDTH + "," + AdaptiveContentDetector.MIN_SCENE_LEN
+                + ";detectors=" + ShotsDetection.DETECTORS + "," + ShotsDetection.THRESHOLD + "," + ShotsDetection.SHOT_MIN_DIS;
+    }
 
-            // 等待命令执行完毕
-            int exitCode = process.waitFor();
-            System.out.println("Exit code: " + exitCode);
-        } catch (IOException | InterruptedException e) {
-            e.printStackTrace();
-        }
+    static String sceneParameters() {
+        return "sceneThreshold=" + SCENE_THRESHOLD + ";sceneWindow=" + SCENE_WINDOW;
+    }
+
+    static String subshotParameters() {
+        return "audioEnergy=" + AUDIO_ENERGY_THRESHOLD + ";motion=" + MotionEngine.CHANNEL_THRESHOLD;
     }
 
     // 镜头边界检测。输入：视频帧列表，音频帧列表。输出：边界索引列表，索引为视频中的边界帧。比如有shots[0,1,2,3,4,5]，返回的结果样式是[0,2,4]，因为0,2,4是边界帧。xc
-    public List<Integer> shotBoundaryDetection(String csvFilePath, List<BufferedImage> video, List<byte[]> audio) {
-        List<Integer> pySceneResult = Stats.readPySceneDetectResult(csvFilePath);
-        return ShotsDetection.detectShots(video, audio, pySceneResult);
+    // The coarse scene intervals come from the in-process adaptive content detector, which replaces the PySceneDetect run.
+    public List<Integer> shotBoundaryDetection(FeatureStore features) {
+        List<Integer> adaptiveResult = AdaptiveContentDetector.detect(features);
+        return ShotsDetection.detectShots(features, adaptiveResult);
     }
 
     // 场景聚类。输出内容是场景边界对应于Shots的索引列表。比如有边界[0,5,20]，场景聚类结果可以是List=[0,2]，表示从[0,5]开始的shots在同一个场景，[20]开始的shot在另一个场景。
-    public List<Integer> sceneClustering(List<BufferedImage> video, List<Integer> shotBoundaries) {
-        return HierarchicalClustering.agglomerativeClustering(video, shotBoundaries, 0.5);
+    public List<Integer> sceneClustering(FeatureStore features, List<Integer> shotBoundaries) {
+        if (SCENE_WINDOW > 0) {
+            return HierarchicalClustering.windowedClustering(features, shotBoundaries, SCENE_THRESHOLD, SCENE_WINDOW * FPS);
+        }
+        return HierarchicalClustering.agglomerativeClustering(features, shotBoundaries, SCENE_THRESHOLD);
     }
 
     // 子镜头检测。输出Map<ShotIndex, List<SubshotFrames>>，比如有边界[0,5,20]，subshot可能为{0:[0, 3], 5:[5, 10, 15],
     // 20:[20]}，其中[]里面的是subshot的帧索引。
-    public Map<Integer, List<Integer>> subshotDetection(List<BufferedImage> video, List<byte[]> audio,
-                                                        List<Integer> shotBoundaries) {
-        Map<Integer, List<Integer>> subshotBoundaries = new HashMap<>();
+    // Shots are independent, so they are searched in parallel, longest shot first so that one long shot does not finish last.
+    public Map<Integer, List<Integer>> subshotDetection(FeatureStore features, List<Integer> shotBoundaries) {
+        int shotNum = shotBoundaries.size();
+        Map<Integer, List<Integer>> subshotBoundaries = new ConcurrentHashMap<>(shotNum * 2);
 
+        Integer[] order = new Integer[shotNum];
+        for (int i = 0; i < shotNum; i++) order[i] = i;
+        Arrays.sort(order, Comparator.comparingInt((Integer i) -> shotEnd(features, shotBoundaries, i) - shotBoundaries.get(i)).reversed());
+
+        ForkJoinPool pool = new ForkJoinPool(PARALLEL_SUBSHOTS ? Math.max(1, ShotsDetection.PARALLELISM) : 1);
+        try {
+            List<ForkJoinTask<?>> tasks = new ArrayList<>(shotNum);
+            for (int i : order) {
+                int startIndex = shotBoundaries.get(i);
+                int endIndex = shotEnd(features, shotBoundaries, i);
+                tasks.add(pool.submit(() -> {
+                    subshotBoundaries.put(startIndex, subshotDetection(features, startIndex, endIndex));
+                }));
+            }
+            for (ForkJoinTask<?> task : tasks) {
+                task.join();
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        return subshotBoundaries;
+    }
+
+    private static int shotEnd(FeatureStore features, List<Integer> shotBoundaries, int i) {
+        return i + 1 < shotBoundaries.size() ? shotBoundaries.get(i + 1) - 1 : features.size() - 1;
+    }
+
+    // 单个镜头内的子镜头检测，只读取[startIndex, endIndex]内的帧
+    private List<Integer> subshotDetection(FeatureStore features, int startIndex, int endIndex) {
         //ignore part of the start and end indices from a shot
         int ignoreFrames = 45;
-
-        for (int i = 0; i < shotBoundaries.size(); i++) {
-            int startIndex = shotBoundaries.get(i);
-            int endIndex = i + 1 < shotBoundaries.size() ? shotBoundaries.get(i + 1) - 1 : video.size() - 1;
-            int subshotCount = 0;
-
-            //System.out.println(startIndex + " -> " + endIndex);
-
-            List<Integer> subshotStartAt = new ArrayList<>();
-
-            // set the threshold value for video change dedection
-            double videoThreshold = 100;
-            int[][] previousFrame = new int[HEIGHT][WIDTH];
-            long previousTime = 0;
-            double timeatsec = 0.0;
-            double previousatsec = 0.0;
-            int videoSubshot = 0;
-
-            // set the threshold value for audio change dedection
-            double audioThreshold = 0.15;
-            double energy = 0.0;
-            double previousEnergy = 0.0;
-            double durationInSeconds = 0.0;
-            double previousDuration = 0.0;
-
-            for (int j = startIndex; j <= endIndex; j++) {
-                // looking for subshots through video list
-                BufferedImage currentImage = video.get(j);
-                int[][] currentFrame = new int[HEIGHT][WIDTH];
-                int audioSubshot = 0;
-
-                // get rgb value from the current image
-                for (int y = 0; y < HEIGHT; y++) {
-                    for (int x = 0; x < WIDTH; x++) {
-                        int rgb = currentImage.getRGB(x, y);
-                        currentFrame[y][x] = rgb;
+        int subshotCount = 0;
+
+        //System.out.println(startIndex + " -> " + endIndex);
+
+        List<Integer> subshotStartAt = new ArrayList<>();
+
+        double timeatsec = 0.0;
+        double previousatsec = 0.0;
+        int videoSubshot = 0;
+
+        // set the threshold value for audio change dedection
+        double audioThreshold = AUDIO_ENERGY_THRESHOLD;
+        double energy = 0.0;
+        double previousEnergy = 0.0;
+        double durationInSeconds = 0.0;
+        double previousDuration = 0.0;
+
+        for (int j = startIndex; j <= endIndex; j++) {
+            // looking for subshots through video list
+            int audioSubshot = 0;
+
+            // the first frame of a shot has no previous frame in the shot to compare with
+            double motionScore = features.motion(j);
+            if (j > startIndex && !Double.isNaN(motionScore)) {
+                timeatsec = (double) j / FPS;
+                if (motionScore > 0.7 && timeatsec - previousatsec > 3 && j - audioSubshot > 60) {
+                    if (j - startIndex > ignoreFrames && endIndex - j > ignoreFrames) {
+                        //System.out.println("motion at " + j);
+                        subshotStartAt.add(j);
+                        subshotCount++;
+                        videoSubshot = j;
+                        previousatsec = timeatsec;
                     }
                 }
+            }
 
-                long currentTime = System.currentTimeMillis();
-                if (currentTime - previousTime < 1000 / FPS) {
-                    int differenceCount = 0;
-                    for (int y = 0; y < HEIGHT; y++) {
-                        for (int x = 0; x < WIDTH; x++) {
-                            int difference = Math.abs(currentFrame[y][x] - previousFrame[y][x]);
-                            if (difference > videoThreshold) {
-                                differenceCount++;
-                            }
-                        }
-                    }
-                    double motionScore = (double) differenceCount / (WIDTH * HEIGHT);
-                    timeatsec = (double) j / FPS;
-                    if (motionScore > 0.7 && timeatsec - previousatsec > 3 && j - audioSubshot > 60) {
-                        if (j - startIndex > ignoreFrames && endIndex - j > ignoreFrames) {
-                            //System.out.println("motion at " + j);
-                            subshotStartAt.add(j);
-                            subshotCount++;
-                            videoSubshot = j;
-                            previousatsec = timeatsec;
-                        }
-                    }
-                }
-                previousFrame = currentFrame;
-                previousTime = currentTime;
-
-                // looking for sub-shots through audio list
-                byte[] audioBuffer = audio.get(j);
-                int samplesPerBuffer = audioBuffer.length / FRAME_SIZE;
-
-                for (int k = 0; k < audioBuffer.length; k += FRAME_SIZE) {
-                    // Convert the bytes to a double value between -1 and 1
-                    double sample = (double) ((audioBuffer[k] & 0xFF) | (audioBuffer[k + 1] << 8)) / audioBuffer.length;
-                    // Calculate the energy of the sample
-                    energy += Math.pow(sample, 2) / samplesPerBuffer;
-                }
-                durationInSeconds = ((double) j * audioBuffer.length / FRAME_SIZE + 0.0) / SAMPLING_RATE;
-
-                // If the energy has changed above the threshold, a sound change has occurred
-                if (Math.abs(energy - previousEnergy) > audioThreshold && durationInSeconds - previousDuration > 3 && j - videoSubshot > 60) {
-                    if (!(subshotStartAt.contains(j))) {
-                        if (j - startIndex > ignoreFrames && endIndex - j > ignoreFrames) {
-                            //System.out.println("Sound at " + j);
-                            subshotStartAt.add(j);
-                            subshotCount++;
-                            audioSubshot = j;
-                        }
+            // looking for sub-shots through audio features
+            energy = features.audioEnergy(j);
+            durationInSeconds = (double) j / FPS;
+
+            // If the energy has changed above the threshold, a sound change has occurred
+            if (Math.abs(energy - previousEnergy) > audioThreshold && durationInSeconds - previousDuration > 3 && j - videoSubshot > 60) {
+                if (!(subshotStartAt.contains(j))) {
+                    if (j - startIndex > ignoreFrames && endIndex - j > ignoreFrames) {
+                        //System.out.println("Sound at " + j);
+                        subshotStartAt.add(j);
+                        subshotCount++;
+                        audioSubshot = j;
                     }
-                    previousDuration = durationInSeconds;
                 }
-
-                previousEnergy = energy;
-                energy = 0;
-                durationInSeconds = 0;
-            }
-
-            if (subshotCount > 0) {
-                subshotStartAt.add(0, startIndex);
+                previousDuration = durationInSeconds;
             }
 
-            subshotBoundaries.put(startIndex, subshotStartAt);
+            previousEnergy = energy;
+            energy = 0;
+            durationInSeconds = 0;
+        }
 
+        if (subshotCount > 0) {
+            subshotStartAt.add(0, startIndex);
         }
 
-        return subshotBoundaries;
+        return subshotStartAt;
     }
 
     public IndexTree buildIndexTree(int frameNum, List<Integer> shotBoundaries, List<Integer> sceneBoundaries, Map<Integer, List<Integer>> subShots) {
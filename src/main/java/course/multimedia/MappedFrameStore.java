@@ -0,0 +1,99 @@
+package course.multimedia;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A {@link FrameStore} backed by read-only memory mappings of a .rgb file.
+ * Frames are decoded only when requested, so the heap footprint does not grow with the video length.
+ * A single mapping is limited to 2GB, so larger files are split into several mappings,
+ * each of which holds a whole number of frames.
+ */
+public class MappedFrameStore implements FrameStore {
+    private final int width;
+    private final int height;
+    private final int bytesPerFrame;
+    private final int framesPerMapping;
+    private final int frameNum;
+    private final ThreadLocal<FrameDecoder> decoders;
+    private volatile MappedByteBuffer[] mappings; // null once closed
+
+    /**
+     * Creates an empty store, used when the video file cannot be read.
+     */
+    MappedFrameStore() {
+        this.width = Main.WIDTH;
+        this.height = Main.HEIGHT;
+        this.bytesPerFrame = width * height * 3;
+        this.framesPerMapping = Integer.MAX_VALUE / bytesPerFrame;
+        this.frameNum = 0;
+        this.decoders = ThreadLocal.withInitial(() -> new FrameDecoder(width, height));
+        this.mappings = new MappedByteBuffer[0];
+    }
+
+    private MappedFrameStore(File file, int width, int height) throws IOException {
+        this.width = width;
+        this.height = height;
+        this.bytesPerFrame = width * height * 3;
+        this.framesPerMapping = Integer.MAX_VALUE / bytesPerFrame;
+        this.decoders = ThreadLocal.withInitial(() -> new FrameDecoder(width, height));
+
+        // The mappings stay valid after the channel is closed
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            this.frameNum = (int) (channel.size() / bytesPerFrame);
+            int mappingNum = (frameNum + framesPerMapping - 1) / framesPerMapping;
+            this.mappings = new MappedByteBuffer[mappingNum];
+            for (int i = 0; i < mappingNum; i++) {
+                long position = (long) i * framesPerMapping * bytesPerFrame;
+                int frames = Math.min(framesPerMapping, frameNum - i * framesPerMapping);
+                mappings[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, (long) frames * bytesPerFrame);
+            }
+        }
+    }
+
+    public static MappedFrameStore open(File file) throws IOException {
+        return new MappedFrameStore(file, Main.WIDTH, Main.HEIGHT);
+    }
+
+    @Override
+    public int size() {
+        return frameNum;
+    }
+
+    @Override
+    public BufferedImage getFrame(int index) {
+        return decoders.get().decode(frameBuffer(index));
+    }
+
+    @Override
+    public void readPixels(int index, int[] dst) {
+        decoders.get().decode(frameBuffer(index), dst);
+    }
+
+    private ByteBuffer frameBuffer(int index) {
+        MappedByteBuffer[] mappings = this.mappings;
+        if (mappings == null) {
+            throw new IllegalStateException("Frame store is closed");
+        }
+        if (index < 0 || index >= frameNum) {
+            throw new IndexOutOfBoundsException("Frame index " + index + " out of range [0, " + frameNum + ")");
+        }
+
+        // Duplicate the mapping so that concurrent readers do not share a position
+        ByteBuffer buffer = mappings[index / framesPerMapping].duplicate();
+        buffer.position((index % framesPerMapping) * bytesPerFrame);
+        return buffer;
+    }
+
+    @Override
+    public void close() {
+        // Mapped buffers are unmapped when they are garbage collected
+        mappings = null;
+    }
+}
@@ -1,6 +1,6 @@
 package course.multimedia;
 
-import javax.sound.sampled.*;
+import javax.sound.sampled.LineUnavailableException;
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
 import java.awt.*;
@@ -9,8 +9,6 @@ import java.awt.event.ActionListener;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.image.BufferedImage;
-import java.io.File;
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -21,23 +19,28 @@ import java.util.stream.Collectors;
 
 public class MediaPlayer extends JFrame implements ActionListener {
     public static double frameRate = 30.0; // frames per second of the video
+    public static int READ_AHEAD_FRAMES = ReadAheadFrameSource.DEFAULT_CAPACITY; // frames decoded ahead of the playhead
 
     // Components
-    private Clip audioClip;
-    private JLabel imageLabel;
+    private StreamingAudioPlayer audioPlayer;
+    private VideoPanel videoPanel;
     JLabel currentFrameLabel = new JLabel("0/0");
     private JButton playButton, pauseButton, stopButton;
     private JPanel sidebarPanel;
 
     // Variables
-    private final List<BufferedImage> frames;
+    private final ReadAheadFrameSource frames;
     private int frameIndex;
+    // Frame last handed to the video panel by the playback thread, -1 if none
+    private int shownFrameIndex = -1;
     private ScheduledExecutorService executor;
     private JPanel previousSelectedButtonBox = null;
     private final List<IndexRangeButton> indexRangeButtons = new ArrayList<>();
     private IndexRangeButton previousHighlightedButton = null;
-    private final List<IndexRangeButtonBox> indexRangeButtonBoxes = new ArrayList<>();
+    // Button boxes of each level of the index tree, in the same order as IndexTree.section(level, i)
+    private final List<List<IndexRangeButtonBox>> indexRangeButtonBoxes = new ArrayList<>();
     private IndexRangeButtonBox previousHighlightedButtonBox = null;
+    private final IndexTree indexTree;
 
     // ==================== Dev Tools ====================
     private JTextArea frameInput;
@@ -48,14 +51,14 @@ public class MediaPlayer extends JFrame implements ActionListener {
 
     /***
      * Entrance to play video and audio synchronously
-     * @param frames: List of frames
-     * @param audioFile: Audio file
+     * @param frames: Frames of the video
+     * @param audioTrack: Audio of the video
      * @param indexTree: Root->Scene->Shot->Sub-shot
      */
-    public static void play(List<BufferedImage> frames, File audioFile, IndexTree indexTree) {
+    public static void play(FrameStore frames, AudioTrack audioTrack, IndexTree indexTree) {
         // 创建并显示界面
         EventQueue.invokeLater(() -> {
-            MediaPlayer player = new MediaPlayer(frames, audioFile, indexTree);
+            MediaPlayer player = new MediaPlayer(frames, audioTrack, indexTree);
             player.setVisible(true);
         });
     }
@@ -110,11 +113,17 @@ public class MediaPlayer extends JFrame implements ActionListener {
     }
 
 
-    public MediaPlayer(List<BufferedImage> frames, File audioFile, IndexTree indexTree) {
-        this.frames = frames;
+    public MediaPlayer(FrameStore frames, AudioTrack audioTrack, IndexTree indexTree) {
+        // 播放时后台线程提前解码帧，内存只占固定数量的帧
+        this.frames = new ReadAheadFrameSource(frames, READ_AHEAD_FRAMES);
+        this.indexTree = indexTree;
+        for (int level = 0; level <= IndexTree.SUBSHOT; level++) {
+            indexRangeButtonBoxes.add(new ArrayList<>());
+        }
         initUI();
-        initAudio(audioFile);
+        initAudio(audioTrack);
         generateSidebarButtons(indexTree.root, 1);
+        highlightButtonBoxForCurrentFrame(frameIndex);
     }
 
     // 初始化界面
@@ -157,12 +166,12 @@ public class MediaPlayer extends JFrame implements ActionListener {
         container.add(splitPane, BorderLayout.CENTER);
 
         // 创建视频播放区域
-        imageLabel = new JLabel();
-        if (!frames.isEmpty()) {
-            imageLabel.setIcon(new ImageIcon(frames.get(0)));
+        videoPanel = new VideoPanel(Main.WIDTH, Main.HEIGHT);
+        if (frames.size() > 0) {
+            showFrame(0);
+            shownFrameIndex = 0; // 第一次刷新不再重复读取第0帧
         }
-        imageLabel.setHorizontalAlignment(JLabel.CENTER);
-        rightPanel.add(imageLabel, BorderLayout.CENTER);
+        rightPanel.add(videoPanel, BorderLayout.CENTER);
 
         // 创建控制面板
         JPanel controlPanel = new JPanel();
@@ -282,12 +291,10 @@ public class MediaPlayer extends JFrame implements ActionListener {
 
 
     // 初始化音频
-    private void initAudio(File audioFile) {
+    private void initAudio(AudioTrack audioTrack) {
         try {
-            AudioInputStream audioStream = AudioSystem.getAudioInputStream(audioFile);
-            audioClip = AudioSystem.getClip();
-            audioClip.open(audioStream);
-        } catch (UnsupportedAudioFileException | IOException | LineUnavailableException e) {
+            audioPlayer = new StreamingAudioPlayer(audioTrack);
+        } catch (LineUnavailableException e) {
             e.printStackTrace();
         }
     }
@@ -302,7 +309,7 @@ public class MediaPlayer extends JFrame implements ActionListener {
             if (executor != null) {
                 executor.shutdownNow();
             }
-            audioClip.stop();
+            audioPlayer.stop();
         } else if (source == stopButton) {
             stop();
         }
@@ -312,13 +319,14 @@ public class MediaPlayer extends JFrame implements ActionListener {
     private void setFrameAndSyncAudio(int targetFrame, boolean playAfterJump) {
         if (targetFrame >= 0 && targetFrame < frames.size()) {
             frameIndex = targetFrame;
-            imageLabel.setIcon(new ImageIcon(frames.get(frameIndex)));
+            shownFrameIndex = targetFrame;
+            showFrame(frameIndex);
 
             // 计算目标帧对应的音频播放位置
             long targetMicrosecondPosition = (long) (targetFrame * (1000000.0 / frameRate));
 
             // 设置音频剪辑的播放位置
-            audioClip.setMicrosecondPosition(targetMicrosecondPosition);
+            audioPlayer.setMicrosecondPosition(targetMicrosecondPosition);
 
             if (playAfterJump) {
                 play();
@@ -326,7 +334,7 @@ public class MediaPlayer extends JFrame implements ActionListener {
                 if (executor != null) {
                     executor.shutdownNow();
                 }
-                audioClip.stop();
+                audioPlayer.stop();
             }
         }
     }
@@ -382,7 +390,7 @@ public class MediaPlayer extends JFrame implements ActionListener {
             buttonBox.setAlignmentX(Component.LEFT_ALIGNMENT);
             buttonBox.setBorder(BorderFactory.createEmptyBorder(0, 15, 0, 0));
             buttonBox.add(button);
-            indexRangeButtonBoxes.add(buttonBox);
+            indexRangeButtonBoxes.get(level).add(buttonBox);
 
 
             button.addActionListener(e -> {
@@ -414,7 +422,8 @@ public class MediaPlayer extends JFrame implements ActionListener {
                 @Override
                 public void mouseExited(MouseEvent e) {
                     // 当鼠标离开按钮时，如果按钮没有被点击，则恢复原来的背景颜色
-                    if (previousSelectedButtonBox != buttonBox && buttonBox.getBackground() != Color.WHITE) {
+                    if (previousSelectedButtonBox != buttonBox && previousHighlightedButtonBox != buttonBox
+                            && buttonBox.getBackground() != Color.WHITE) {
                         // button.setContentAreaFilled(false);
                         buttonBox.setBackground(Color.WHITE);
                     }
@@ -445,7 +454,7 @@ public class MediaPlayer extends JFrame implements ActionListener {
 
         executor.scheduleAtFixedRate(this::updateFrame, 0, frameInterval, TimeUnit.MILLISECONDS);
 
-        audioClip.start();
+        audioPlayer.start();
     }
 
     private void stop() {
@@ -453,14 +462,14 @@ public class MediaPlayer extends JFrame implements ActionListener {
             executor.shutdownNow();
         }
 
-        audioClip.stop();
+        audioPlayer.stop();
         setFrameAndSyncAudio(0, false);
         updateFrameDisplay(); // 更新帧显示
     }
 
 
     private void updateFrame() {
-        int targetFrameIndex = getTargetFrameIndex(audioClip.getMicrosecondPosition());
+        int targetFrameIndex = getTargetFrameIndex(audioPlayer.getMicrosecondPosition());
 
         if (frameIndex < targetFrameIndex) {
             // 如果当前视频帧落后于音频时间戳，跳帧
@@ -471,17 +480,26 @@ public class MediaPlayer extends JFrame implements ActionListener {
         }
 
         if (frameIndex < frames.size()) {
-            imageLabel.setIcon(new ImageIcon(frames.get(frameIndex)));
-            updateFrameDisplay(); // 更新帧显示
+            // 帧没有变化时不重绘；解码在播放线程，绘制和其他界面更新在EDT
+            if (frameIndex != shownFrameIndex) {
+                shownFrameIndex = frameIndex;
+                showFrame(frameIndex);
+                EventQueue.invokeLater(this::updateFrameDisplay); // 更新帧显示
+            }
         } else {
             // 当视频播放完毕时，停止音频播放并关闭定时器
-            audioClip.stop();
+            audioPlayer.stop();
             if (executor != null) {
                 executor.shutdownNow();
             }
         }
     }
 
+    // 跳转在EDT、播放在定时器线程，读取帧和复制到画面必须串行，否则帧图像可能被后台线程复用
+    private synchronized void showFrame(int index) {
+        videoPanel.setFrame(frames.getFrame(index));
+    }
+
     private int getTargetFrameIndex(long audioTimestamp) {
         return (int) (audioTimestamp * frameRate / 1000000.0);
     }
@@ -565,31 +583,34 @@ public class MediaPlayer extends JFrame implements ActionListener {
         }
     }
 
+    // 只更新高亮状态发生变化的按钮，每帧的开销与索引大小无关
     private void highlightButtonBoxForCurrentFrame(int currentFrame) {
-        // 获取当前帧所在的最低级别
-        int highestLevel = Integer.MIN_VALUE;
-        for (IndexRangeButtonBox buttonBox : indexRangeButtonBoxes) {
-            if (buttonBox.getStartIndex() <= currentFrame && buttonBox.getEndIndex() >= currentFrame) {
-                highestLevel = Math.max(highestLevel, buttonBox.getLevel());
+        // 获取当前帧所在的最低级别，侧边栏生成之前没有按钮
+        IndexRangeButtonBox buttonBoxToHighlight = null;
+        for (int level = IndexTree.SUBSHOT; level >= IndexTree.SCENE && buttonBoxToHighlight == null; level--) {
+            int section = indexTree.sectionAt(level, currentFrame);
+            List<IndexRangeButtonBox> buttonBoxes = indexRangeButtonBoxes.get(level);
+            if (section >= 0 && section < buttonBoxes.size()) {
+                buttonBoxToHighlight = buttonBoxes.get(section);
             }
         }
 
         // 高亮最低级别的按钮
-        for (IndexRangeButtonBox buttonBox : indexRangeButtonBoxes) {
-            if (buttonBox.getStartIndex() <= currentFrame && buttonBox.getEndIndex() >= currentFrame) {
-                if (buttonBox.getLevel() == highestLevel) {
-                    buttonBox.setBackground(new Color(238, 238, 238));
-                }
-            } else {
-                buttonBox.setBackground(Color.WHITE);
+        if (buttonBoxToHighlight != previousHighlightedButtonBox) {
+            if (previousHighlightedButtonBox != null) {
+                previousHighlightedButtonBox.setBackground(Color.WHITE);
+            }
+            if (buttonBoxToHighlight != null) {
+                buttonBoxToHighlight.setBackground(new Color(238, 238, 238));
             }
+            previousHighlightedButtonBox = buttonBoxToHighlight;
         }
     }
 
 
 
 
-    // public static void main(String[] args) {
+    // public static void main(String[] args) throws Exception {
     //     File audioFile = new File("/Users/zhengyaowen/Downloads/Demo-576/Ready_Player_One_rgb/InputAudio.wav");
     //     // Create an all black frame
     //     BufferedImage blackFrame = new BufferedImage(480, 270, BufferedImage.TYPE_INT_RGB);
@@ -597,15 +618,12 @@ public class MediaPlayer extends JFrame implements ActionListener {
     //     graphics.setColor(Color.BLACK);
     //     graphics.fillRect(0, 0, blackFrame.getWidth(), blackFrame.getHeight());
     //
-    //     // 创建并显示界面
-    //     EventQueue.invokeLater(() -> {
-    //         // 创建一个空的帧列表和一个空的索引树
-    //         List<BufferedImage> emptyFrames = new ArrayList<>();
-    //         emptyFrames.add(blackFrame);
-    //         IndexTree indexTree = IndexTree.getMockIndexTree();
+    //     // 只有一帧的视频和从JSON读取的索引树
+    //     FrameStore frames = new MemoryFrameStore(new BufferedImage[]{blackFrame});
+    //     AudioTrack audioTrack = AudioTrack.open(audioFile, frames.size(), 30);
+    //     IndexTree indexTree = IndexTreeIO.readJson(new File("index.json"));
     //
-    //         MediaPlayer player = new MediaPlayer(emptyFrames, audioFile, indexTree);
-    //         player.setVisible(true);
-    //     });
+    //     // 创建并显示界面
+    //     play(frames, audioTrack, indexTree);
     // }
 }
@@ -0,0 +1,30 @@
+package course.multimedia;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * A {@link FrameStore} that keeps every decoded frame on the heap.
+ * This trades memory for instant access and is only suitable for short videos.
+ */
+public class MemoryFrameStore implements FrameStore {
+    private BufferedImage[] frames;
+
+    public MemoryFrameStore(BufferedImage[] frames) {
+        this.frames = frames;
+    }
+
+    @Override
+    public int size() {
+        return frames.length;
+    }
+
+    @Override
+    public BufferedImage getFrame(int index) {
+        return frames[index];
+    }
+
+    @Override
+    public void close() {
+        frames = new BufferedImage[0];
+    }
+}
@@ -0,0 +1,68 @@
+package course.multimedia;
+
+/**
+ * Motion score of consecutive frames for sub-shot detection.
+ * A pixel has moved when one of its red, green or blue values changed by more than the channel threshold,
+ * and the score of a frame is the fraction of pixels that moved since the previous frame.
+ * The engine keeps two pixel buffers and swaps them, so scoring a frame allocates nothing,
+ * and the score only depends on the pixels, not on how fast the frames are read.
+ * One engine is used by one thread at a time.
+ */
+public class MotionEngine {
+    public static int CHANNEL_THRESHOLD = 24; // change of a color channel (0 - 255) that counts as motion
+
+    private final int pixelNum;
+    private final int channelThreshold;
+    private int[] previous;
+    private int[] current;
+    private boolean hasPrevious;
+
+    public MotionEngine(int width, int height) {
+        this(width, height, CHANNEL_THRESHOLD);
+    }
+
+    public MotionEngine(int width, int height, int channelThreshold) {
+        this.pixelNum = width * height;
+        this.channelThreshold = channelThreshold;
+        this.previous = new int[pixelNum];
+        this.current = new int[pixelNum];
+    }
+
+    /**
+     * Scores the packed 0xRRGGBB pixels of a frame against the frame given to the previous call.
+     *
+     * @return fraction of moved pixels in [0, 1], or NaN for the first frame
+     */
+    public double next(int[] pixels) {
+        System.arraycopy(pixels, 0, current, 0, pixelNum);
+        return advance();
+    }
+
+    private double advance() {
+        double score = hasPrevious ? score(previous, current) : Double.NaN;
+
+        int[] tmp = previous;
+        previous = current;
+        current = tmp;
+        hasPrevious = true;
+        return score;
+    }
+
+    private double score(int[] a, int[] b) {
+        int moved = 0;
+        for (int p = 0; p < pixelNum; p++) {
+            int x = a[p];
+            int y = b[p];
+            if (x == y) {
+                continue;
+            }
+            int dr = Math.abs(((x >> 16) & 0xff) - ((y >> 16) & 0xff));
+            int dg = Math.abs(((x >> 8) & 0xff) - ((y >> 8) & 0xff));
+            int db = Math.abs((x & 0xff) - (y & 0xff));
+            if (Math.max(dr, Math.max(dg, db)) > channelThreshold) {
+                moved++;
+            }
+        }
+        return (double) moved / pixelNum;
+    }
+}
@@ -0,0 +1,101 @@
+package course.multimedia;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Decodes every frame of a .rgb file into memory using a ForkJoin pool.
+ * Each frame has a fixed size, so the frame range is split into chunks that are read with
+ * positional {@link FileChannel#read(ByteBuffer, long)} calls on a shared channel,
+ * and every decoded frame is stored at its own index to keep the original order.
+ */
+public class ParallelFrameLoader {
+    // Number of chunks per worker, more chunks give better balancing when some reads are slower
+    private static final int CHUNKS_PER_WORKER = 4;
+
+    private final FileChannel channel;
+    private final BufferedImage[] frames;
+    private final int width;
+    private final int height;
+    private final int bytesPerFrame;
+
+    private ParallelFrameLoader(FileChannel channel, int frameNum, int width, int height) {
+        this.channel = channel;
+        this.frames = new BufferedImage[frameNum];
+        this.width = width;
+        this.height = height;
+        this.bytesPerFrame = width * height * 3;
+    }
+
+    /**
+     * Loads all frames of the given .rgb file.
+     *
+     * @param file    the .rgb video file
+     * @param workers the number of worker threads
+     * @return a store holding every frame in memory
+     */
+    public static MemoryFrameStore load(File file, int workers) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            int frameNum = (int) (channel.size() / (Main.WIDTH * Main.HEIGHT * 3));
+            ParallelFrameLoader loader = new ParallelFrameLoader(channel, frameNum, Main.WIDTH, Main.HEIGHT);
+            int chunkSize = Math.max(1, frameNum / (Math.max(1, workers) * CHUNKS_PER_WORKER));
+
+            ForkJoinPool pool = new ForkJoinPool(Math.max(1, workers));
+            try {
+                pool.invoke(loader.new LoadTask(0, frameNum, chunkSize));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            } finally {
+                pool.shutdown();
+            }
+            return new MemoryFrameStore(loader.frames);
+        }
+    }
+
+    private class LoadTask extends RecursiveAction {
+        private final int from;
+        private final int to;
+        private final int chunkSize;
+
+        LoadTask(int from, int to, int chunkSize) {
+            this.from = from;
+            this.to = to;
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > chunkSize) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new LoadTask(from, mid, chunkSize), new LoadTask(mid, to, chunkSize));
+                return;
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate(bytesPerFrame);
+            FrameDecoder decoder = new FrameDecoder(width, height);
+            try {
+                for (int i = from; i < to; i++) {
+                    long position = (long) i * bytesPerFrame;
+                    buffer.clear();
+                    while (buffer.hasRemaining()) {
+                        if (channel.read(buffer, position + buffer.position()) < 0) {
+                            throw new IOException("Unexpected end of file at frame " + i);
+                        }
+                    }
+                    buffer.flip();
+                    frames[i] = decoder.decode(buffer);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package course.multimedia;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.ArrayDeque;
+
+/**
+ * Frames for playback, decoded ahead of the playhead by a reader thread into a bounded ring buffer.
+ * The images come from a fixed pool, so playback memory is a few dozen frames whatever the length of the video.
+ * Asking for a frame outside the ring, e.g. after a seek, decodes it directly and restarts the read-ahead after it.
+ * <p>
+ * An image returned by {@link #getFrame(int)} is only valid until the next call, which may hand it to the reader again,
+ * so callers copy what they keep, as {@link VideoPanel#setFrame(BufferedImage)} does, and do not call it from two threads at once.
+ */
+public class ReadAheadFrameSource implements AutoCloseable {
+    public static final int DEFAULT_CAPACITY = 32; // frames decoded ahead of the playhead
+
+    private final FrameStore frames;
+
+    private final Object lock = new Object();
+    private final BufferedImage[] ring;
+    private int ringRead;
+    private int ringCount;
+    private int ringStartFrame; // frame held at ringRead
+    private int decodingFrame = -1; // frame being decoded by the reader, -1 if none
+    private long seekGeneration;
+    private final ArrayDeque<BufferedImage> pool = new ArrayDeque<>();
+    // The last image handed out and its frame, kept out of the pool until the next call
+    private BufferedImage current;
+    private int currentFrame = -1;
+    private boolean closed;
+
+    public ReadAheadFrameSource(FrameStore frames) {
+        this(frames, DEFAULT_CAPACITY);
+    }
+
+    public ReadAheadFrameSource(FrameStore frames, int capacity) {
+        this.frames = frames;
+        this.ring = new BufferedImage[capacity];
+        // The ring, the frame being decoded and the frame handed out
+        for (int i = 0; i < capacity + 2; i++) {
+            pool.add(new BufferedImage(Main.WIDTH, Main.HEIGHT, BufferedImage.TYPE_INT_RGB));
+        }
+
+        Thread reader = new Thread(this::readLoop, "frame-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    public int size() {
+        return frames.size();
+    }
+
+    private void readLoop() {
+        while (true) {
+            BufferedImage image;
+            int frame;
+            long generation;
+            synchronized (lock) {
+                while (!closed && (ringCount == ring.length || ringStartFrame + ringCount >= frames.size() || pool.isEmpty())) {
+                    if (!waitOnLock()) return; // interrupted, getFrame decodes every frame itself from now on
+                }
+                if (closed) return;
+
+                image = pool.poll();
+                frame = ringStartFrame + ringCount;
+                decodingFrame = frame;
+                generation = seekGeneration;
+            }
+
+            // Decoding takes a while, the playback thread keeps taking frames meanwhile
+            decode(frame, image);
+
+            synchronized (lock) {
+                decodingFrame = -1;
+                if (generation == seekGeneration && frame == ringStartFrame + ringCount) {
+                    ring[(ringRead + ringCount) % ring.length] = image;
+                    ringCount++;
+                } else {
+                    // A seek moved the playhead while the frame was decoded
+                    pool.add(image);
+                }
+                lock.notifyAll();
+            }
+        }
+    }
+
+    private void decode(int frame, BufferedImage image) {
+        frames.readPixels(frame, ((DataBufferInt) image.getRaster().getDataBuffer()).getData());
+    }
+
+    /**
+     * @return the frame, from the ring if it was read ahead, otherwise decoded now
+     */
+    public BufferedImage getFrame(int index) {
+        if (index < 0 || index >= frames.size()) {
+            throw new IndexOutOfBoundsException("Frame " + index + " of " + frames.size());
+        }
+        BufferedImage image;
+        synchronized (lock) {
+            // Asking for the same frame again, e.g. the first frame shown before playback starts, is not a seek
+            if (index == currentFrame) {
+                return current;
+            }
+
+            // The reader is about to deliver the frame, waiting is cheaper than decoding it twice
+            boolean interrupted = false;
+            while (!interrupted && !closed && decodingFrame == index && ringCount == 0 && ringStartFrame == index) {
+                interrupted = !waitOnLock();
+            }
+
+            if (interrupted) {
+                // Decode the frame here instead, the read-ahead is left as it is for the next call
+                image = pool.poll();
+            } else if (index >= ringStartFrame && index < ringStartFrame + ringCount) {
+                // Frames before the requested one were skipped, give their images back
+                while (ringStartFrame < index) {
+                    pool.add(take());
+                }
+                image = take();
+                handOut(image, index);
+                lock.notifyAll();
+                return image;
+            } else {
+                // Seek: drop the read-ahead and restart it after the requested frame
+                seekGeneration++;
+                while (ringCount > 0) {
+                    pool.add(take());
+                }
+                ringRead = 0;
+                ringStartFrame = index + 1;
+                image = pool.poll();
+                lock.notifyAll();
+            }
+        }
+
+        if (image == null) {
+            // Only when the pool was emptied by a reader that has not returned its image yet, or after an interrupt
+            image = new BufferedImage(Main.WIDTH, Main.HEIGHT, BufferedImage.TYPE_INT_RGB);
+        }
+        decode(index, image);
+        synchronized (lock) {
+            handOut(image, index);
+        }
+        return image;
+    }
+
+    // Removes the image at ringRead, must hold the lock
+    private BufferedImage take() {
+        BufferedImage image = ring[ringRead];
+        ring[ringRead] = null;
+        ringRead = (ringRead + 1) % ring.length;
+        ringCount--;
+        ringStartFrame++;
+        return image;
+    }
+
+    // Must hold the lock
+    private void handOut(BufferedImage image, int frame) {
+        if (current != null) {
+            pool.add(current);
+        }
+        current = image;
+        currentFrame = frame;
+    }
+
+    // Returns false if the thread was interrupted, with its interrupt status set again. Only close() closes the source
+    private boolean waitOnLock() {
+        try {
+            lock.wait();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (lock) {
+            closed = true;
+            pool.clear();
+            lock.notifyAll();
+        }
+    }
+}
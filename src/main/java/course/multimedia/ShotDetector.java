@@ -0,0 +1,23 @@
+package course.multimedia;
+
+import java.util.List;
+
+/**
+ * A shot boundary detector taking part in the ensemble vote of {@link ShotsDetection}.
+ * Implementations are registered by name in {@link ShotDetectors} and selected by {@link ShotsDetection#DETECTORS}.
+ */
+public interface ShotDetector {
+
+    /**
+     * Marks the candidate boundary frames the detector finds inside one PySceneDetect interval.
+     *
+     * @param scores          histogram scores of every frame pair
+     * @param pySceneShots    the PySceneDetect boundaries
+     * @param startIdx        first frame of the interval
+     * @param endIdx          first frame of the next interval
+     * @param shotMinDistance minimum number of frames between two candidates
+     * @param candidates      output, one bit per candidate frame
+     */
+    void detect(ShotsDetection.PairScores scores, List<Integer> pySceneShots, int startIdx, int endIdx,
+                int shotMinDistance, FrameBitSet candidates);
+}
@@ -0,0 +1,109 @@
+package course.multimedia;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Registry of the shot detectors that can take part in the ensemble vote, keyed by name.
+ * The built-in detectors are the three histogram comparisons and the PySceneDetect boundaries.
+ */
+public class ShotDetectors {
+    private static final Map<String, Supplier<ShotDetector>> REGISTRY = new LinkedHashMap<>();
+
+    static {
+        register("correlation", () -> new ThresholdDetector() {
+            @Override
+            boolean isBoundary(ShotsDetection.PairScores scores, int i) {
+                // If correlation is less than threshold, then a shot boundary has occurred
+                return scores.correlation[i] < ShotsDetection.CORRELATION_THRESHOLD;
+            }
+        });
+        register("chiSquare", () -> new ThresholdDetector() {
+            @Override
+            boolean isBoundary(ShotsDetection.PairScores scores, int i) {
+                // If chi-square distance is larger than threshold, then a shot boundary has occurred
+                return scores.chiSquare[i] > ShotsDetection.CHI_SQUARE_THRESHOLD;
+            }
+        });
+        register("difference", () -> new ThresholdDetector() {
+            @Override
+            boolean isBoundary(ShotsDetection.PairScores scores, int i) {
+                // If the difference is larger than threshold, then a shot boundary has occurred
+                return scores.difference[i] > ShotsDetection.DIFFERENCE_THRESHOLD;
+            }
+        });
+        register("pyScene", () -> (scores, pySceneShots, startIdx, endIdx, shotMinDistance, candidates) -> {
+            for (int shot : pySceneShots) {
+                candidates.set(shot);
+            }
+        });
+    }
+
+    /**
+     * A detector reporting the frame pairs whose score crosses a threshold, then staying quiet
+     * for shotMinDistance frames.
+     */
+    abstract static class ThresholdDetector implements ShotDetector {
+        abstract boolean isBoundary(ShotsDetection.PairScores scores, int i);
+
+        @Override
+        public void detect(ShotsDetection.PairScores scores, List<Integer> pySceneShots, int startIdx, int endIdx,
+                           int shotMinDistance, FrameBitSet candidates) {
+            int cooldown = shotMinDistance;
+            for (int i = startIdx; i < endIdx - shotMinDistance; i++) {
+                if (Double.isNaN(scores.correlation[i])) continue;
+
+                if (cooldown > 0) cooldown--;
+                else if (isBoundary(scores, i)) {
+                    candidates.set(i);
+                    cooldown = shotMinDistance;
+                }
+            }
+        }
+    }
+
+    /**
+     * A detector and the weight of its vote.
+     */
+    public static class WeightedDetector {
+        public final String name;
+        public final ShotDetector detector;
+        public final double weight;
+
+        public WeightedDetector(String name, ShotDetector detector, double weight) {
+            this.name = name;
+            this.detector = detector;
+            this.weight = weight;
+        }
+    }
+
+    public static synchronized void register(String name, Supplier<ShotDetector> factory) {
+        REGISTRY.put(name, factory);
+    }
+
+    public static synchronized ShotDetector create(String name) {
+        Supplier<ShotDetector> factory = REGISTRY.get(name);
+        if (factory == null) {
+            throw new IllegalArgumentException("Unknown shot detector: " + name + ", registered: " + REGISTRY.keySet());
+        }
+        return factory.get();
+    }
+
+    /**
+     * Parses an ensemble configuration such as {@code "correlation:0.33,difference:0.5"}.
+     */
+    public static List<WeightedDetector> parse(String config) {
+        List<WeightedDetector> detectors = new ArrayList<>();
+        for (String entry : config.split(",")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) continue;
+            String[] parts = entry.split(":");
+            double weight = parts.length > 1 ? Double.parseDouble(parts[1].trim()) : 1.0;
+            detectors.add(new WeightedDetector(parts[0].trim(), create(parts[0].trim()), weight));
+        }
+        return detectors;
+    }
+}
@@ -1,100 +1,144 @@
 package course.multimedia;
 
-import org.opencv.core.Core;
-import org.opencv.core.Mat;
-import org.opencv.core.MatOfFloat;
-import org.opencv.core.MatOfInt;
-import org.opencv.imgproc.Imgproc;
-
-import java.awt.image.BufferedImage;
 import java.util.*;
-
-import static course.multimedia.HierarchicalClustering.bufferedImageToMat;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 public class ShotsDetection {
-    static final int HIST_SIZE = 256; // Number of bins in the histogram
-    static final float[] RANGE = {0, 256}; // Range of pixel values to consider
-    static final boolean ACCUMULATE = false; // Whether to accumulate the histogram
-
-    static Mat frame = new Mat();
-    static Mat prevFrame = new Mat();
-    static Mat hist1 = new Mat();
-    static Mat hist2 = new Mat();
-    static Mat hist3 = new Mat();
-    static Mat hist4 = new Mat();
-    static List<Double> scores = new ArrayList<>();
-    static List<Double> uScores = new ArrayList<>();
-    static List<Double> vScores = new ArrayList<>();
     static final double DIFFERENCE_THRESHOLD = 650;
     static final double CORRELATION_THRESHOLD = 0.8;
     static final double CHI_SQUARE_THRESHOLD = Math.pow(10, 6);
     static final int SHOT_MIN_DIS = 10;
     static final double THRESHOLD = 0.6;
+    // Detectors taking part in the vote and their weights, see ShotDetectors for the registered names
+    public static String DETECTORS = "correlation:0.33,chiSquare:0.33,difference:0.33,pyScene:0.0";
+
+    // Score the frame pairs on a work-stealing pool instead of the calling thread
+    public static boolean PARALLEL = true;
+    public static int PARALLELISM = Runtime.getRuntime().availableProcessors();
+    // Largest number of frame pairs scored by one task, long intervals are split into pieces of this size
+    static final int SPLIT_SIZE = 64;
+    // Plot the correlation scores after scoring, for tuning the thresholds
+    static boolean DRAW_CHART = false;
+
+    /**
+     * Scores of the three histogram detectors, indexed by the first frame of each compared pair.
+     * Pairs that were not scored hold NaN.
+     */
+    public static class PairScores {
+        public final double[] correlation;
+        public final double[] chiSquare;
+        public final double[] difference;
+
+        PairScores(int frameNum) {
+            correlation = new double[frameNum];
+            chiSquare = new double[frameNum];
+            difference = new double[frameNum];
+            Arrays.fill(correlation, Double.NaN);
+            Arrays.fill(chiSquare, Double.NaN);
+            Arrays.fill(difference, Double.NaN);
+        }
+    }
 
+    /**
+     * Scores the frame pairs of the ranges in [lo, hi), comparing frame i with frame i + 1.
+     */
+    private static class ScoreTask extends RecursiveAction {
+        private final FeatureStore features;
+        private final PairScores scores;
+        private final List<int[]> ranges;
+        private final int lo;
+        private final int hi;
+
+        ScoreTask(FeatureStore features, PairScores scores, List<int[]> ranges, int lo, int hi) {
+            this.features = features;
+            this.scores = scores;
+            this.ranges = ranges;
+            this.lo = lo;
+            this.hi = hi;
+        }
 
-    public static List<Integer> detectShotsSimple(List<Mat> mats, List<Integer> pySceneShots, int startIdx, int endIdx, int shotMinDistance, double threshold) {
-        List<Integer> result;
-        List<Integer> correlationShots = new ArrayList<>();
-        List<Integer> chiSquareShots = new ArrayList<>();
-        List<Integer> diffShots = new ArrayList<>();
-
-        Mat uChannel = new Mat();
-        Mat preUChannel = new Mat();
-        Mat vChannel = new Mat();
-        Mat preVChannel = new Mat();
-        int corrFrameDis = shotMinDistance;
-        int chiFrameDis = shotMinDistance;
-        int diffDis = shotMinDistance;
-
-        for (int i = startIdx; i < endIdx - shotMinDistance; i++) {
-            prevFrame = mats.get(i);
-            frame = mats.get(i + 1);
-
-            Imgproc.cvtColor(frame, frame, Imgproc.COLOR_BGR2YUV);
-
-            Core.extractChannel(prevFrame, preUChannel, 1);
-            Core.extractChannel(prevFrame, preVChannel, 2);
-            Core.extractChannel(frame, uChannel, 1);
-            Core.extractChannel(frame, vChannel, 2);
-
-            // U channel histograms
-            Imgproc.calcHist(Arrays.asList(preUChannel), new MatOfInt(0), new Mat(), hist1, new MatOfInt(HIST_SIZE), new MatOfFloat(RANGE), ACCUMULATE);
-            Core.normalize(hist1, hist1, 0, hist1.rows(), Core.NORM_MINMAX);
-            Imgproc.calcHist(Arrays.asList(uChannel), new MatOfInt(0), new Mat(), hist2, new MatOfInt(HIST_SIZE), new MatOfFloat(RANGE), ACCUMULATE);
-            Core.normalize(hist2, hist2, 0, hist2.rows(), Core.NORM_MINMAX);
-            // V channel histograms
-            Imgproc.calcHist(Arrays.asList(preVChannel), new MatOfInt(0), new Mat(), hist3, new MatOfInt(HIST_SIZE), new MatOfFloat(RANGE), ACCUMULATE);
-            Core.normalize(hist3, hist3, 0, hist3.rows(), Core.NORM_MINMAX);
-            Imgproc.calcHist(Arrays.asList(vChannel), new MatOfInt(0), new Mat(), hist4, new MatOfInt(HIST_SIZE), new MatOfFloat(RANGE), ACCUMULATE);
-            Core.normalize(hist4, hist4, 0, hist4.rows(), Core.NORM_MINMAX);
-
-            // Calculate similarity and add to mid-result shots list
-            if (corrFrameDis > 0) corrFrameDis--;
-            else {
-                if (correlationBased(CORRELATION_THRESHOLD, false)) {
-                    correlationShots.add(i);
-                    corrFrameDis = shotMinDistance;
-                }
+        @Override
+        protected void compute() {
+            if (hi - lo > 1) {
+                int mid = (lo + hi) >>> 1;
+                invokeAll(new ScoreTask(features, scores, ranges, lo, mid), new ScoreTask(features, scores, ranges, mid, hi));
+                return;
             }
 
-            if (chiFrameDis > 0) chiFrameDis--;
-            else {
-                if (chiSquareBased(CHI_SQUARE_THRESHOLD, false)) {
-                    chiSquareShots.add(i);
-                    chiFrameDis = shotMinDistance;
-                }
+            // Each frame's histograms are read once and reused as the previous frame of the next pair
+            int[] range = ranges.get(lo);
+            float[] prevU = new float[ChannelHistograms.BINS], prevV = new float[ChannelHistograms.BINS];
+            float[] currU = new float[ChannelHistograms.BINS], currV = new float[ChannelHistograms.BINS];
+            features.u(range[0], prevU);
+            features.v(range[0], prevV);
+            for (int i = range[0]; i < range[1]; i++) {
+                features.u(i + 1, currU);
+                features.v(i + 1, currV);
+                scorePair(prevU, prevV, currU, currV, scores, i);
+
+                float[] tmp = prevU;
+                prevU = currU;
+                currU = tmp;
+                tmp = prevV;
+                prevV = currV;
+                currV = tmp;
             }
+        }
+    }
 
-            if (diffDis > 0) diffDis--;
-            else {
-                if (differenceBased(DIFFERENCE_THRESHOLD, false)) {
-                    diffShots.add(i);
-                    diffDis = shotMinDistance;
-                }
+    private static void scorePair(float[] prevU, float[] prevV, float[] currU, float[] currV, PairScores scores, int index) {
+        scores.correlation[index] = ChannelHistograms.correlation(prevU, currU)
+                * ChannelHistograms.correlation(prevV, currV);
+        scores.chiSquare[index] = ChannelHistograms.chiSquare(prevU, currU)
+                * ChannelHistograms.chiSquare(prevV, currV);
+        scores.difference[index] = ChannelHistograms.difference(prevU, currU);
+    }
+
+    // Frame pairs that detectShotsSimple looks at for every PySceneDetect interval, split into tasks
+    private static List<int[]> scoreRanges(List<Integer> pySceneDetectResult, int frameNum, int shotMinDistance) {
+        List<int[]> ranges = new ArrayList<>();
+        for (int i = 0; i < pySceneDetectResult.size() - 1; i++) {
+            int from = Math.max(0, pySceneDetectResult.get(i));
+            int to = Math.min(pySceneDetectResult.get(i + 1) - shotMinDistance, frameNum - 1);
+            for (int start = from; start < to; start += SPLIT_SIZE) {
+                ranges.add(new int[]{start, Math.min(start + SPLIT_SIZE, to)});
             }
         }
+        return ranges;
+    }
+
+    static PairScores scoreFramePairs(FeatureStore features, int frameNum, List<Integer> pySceneDetectResult, int shotMinDistance) {
+        PairScores scores = new PairScores(frameNum);
+        List<int[]> ranges = scoreRanges(pySceneDetectResult, frameNum, shotMinDistance);
+        if (ranges.isEmpty()) {
+            return scores;
+        }
+
+        ScoreTask task = new ScoreTask(features, scores, ranges, 0, ranges.size());
+        ForkJoinPool pool = new ForkJoinPool(PARALLEL ? Math.max(1, PARALLELISM) : 1);
+        try {
+            pool.invoke(task);
+        } finally {
+            pool.shutdown();
+        }
+        return scores;
+    }
+
+    public static List<Integer> detectShotsSimple(List<ShotDetectors.WeightedDetector> detectors, PairScores scores,
+                                                  List<Integer> pySceneShots, int startIdx, int endIdx, int shotMinDistance, double threshold) {
+        // Only the interval and the Stats.BIAS frames around it can hold candidates that confirm each other,
+        // so the vote works on that window instead of the whole video
+        int from = Math.max(0, startIdx - Stats.BIAS);
+        int size = endIdx + Stats.BIAS - from;
+        List<FrameBitSet> candidates = new ArrayList<>();
+        for (ShotDetectors.WeightedDetector detector : detectors) {
+            FrameBitSet bits = new FrameBitSet(from, size);
+            detector.detector.detect(scores, pySceneShots, startIdx, endIdx, shotMinDistance, bits);
+            candidates.add(bits);
+        }
 
-        result = vote(correlationShots, chiSquareShots, diffShots, pySceneShots, threshold);
+        List<Integer> result = vote(detectors, candidates, threshold);
         // A shot last at least Stats.BIAS(10) frames
         for (int i = 0; i < result.size() - 1; i++) {
             while (i + 1 < result.size() &&
@@ -103,18 +147,29 @@ public class ShotsDetection {
         return result;
     }
 
-    public static List<Integer> detectShots(List<BufferedImage> video, List<byte[]> audio, List<Integer> pySceneDetectResult) {
+    public static List<Integer> detectShots(FeatureStore features, List<Integer> pySceneDetectResult) {
         List<Integer> result = new ArrayList<>(pySceneDetectResult);
-        List<Mat> mats = convertToMat(video);
         int startFrameIdx;
         int endFrameIdx;
         List<List<Integer>> betweenFramesShots = new ArrayList<>();
+        List<ShotDetectors.WeightedDetector> detectors = ShotDetectors.parse(DETECTORS);
+
+        // The histogram work runs in parallel, the per-interval decisions below stay sequential and deterministic
+        // Every frame's histograms come from the feature store, computed once when the features were built
+        PairScores scores = scoreFramePairs(features, features.size(), pySceneDetectResult, SHOT_MIN_DIS);
+        if (DRAW_CHART) {
+            List<Double> correlationScores = new ArrayList<>();
+            for (double score : scores.correlation) {
+                if (!Double.isNaN(score)) correlationScores.add(score);
+            }
+            Stats.drawLineChart(correlationScores, "Correlation");
+        }
 
         for (int i = 0; i < pySceneDetectResult.size() - 1; i++) {
             startFrameIdx = pySceneDetectResult.get(i);
             endFrameIdx = pySceneDetectResult.get(i + 1);
 
-            List<Integer> currRes = ShotsDetection.detectShotsSimple(mats, pySceneDetectResult, startFrameIdx, endFrameIdx, SHOT_MIN_DIS, THRESHOLD);
+            List<Integer> currRes = ShotsDetection.detectShotsSimple(detectors, scores, pySceneDetectResult, startFrameIdx, endFrameIdx, SHOT_MIN_DIS, THRESHOLD);
             betweenFramesShots.add(currRes);
         }
 
@@ -127,111 +182,64 @@ public class ShotsDetection {
         return result;
     }
 
-    private static List<Mat> convertToMat(List<BufferedImage> video) {
-        List<Mat> matList = new ArrayList<>();
-
-        // Convert each BufferedImage to Mat and add it to the list
-        for (BufferedImage bufferedImage : video) {
-            matList.add(bufferedImageToMat(bufferedImage));
+    /**
+     * Keeps the candidates of any detector that enough other detectors confirm within Stats.BIAS frames.
+     * Each detector's candidates are dilated by Stats.BIAS, then every word of 64 frames is resolved at once:
+     * a candidate is kept when the detectors whose dilated sets contain it carry a total weight of at least threshold.
+     */
+    private static List<Integer> vote(List<ShotDetectors.WeightedDetector> detectors, List<FrameBitSet> candidates, double threshold) {
+        int detectorNum = detectors.size();
+        if (detectorNum > 16) {
+            throw new IllegalArgumentException("At most 16 shot detectors can vote, got " + detectorNum);
         }
-
-        return matList;
-    }
-
-    private static boolean differenceBased(double threshold, boolean isDrawChart) {
-
-        double difference = 0;
-        for (int i = 0; i < hist1.rows(); i++) {
-            double h1Value = hist1.get(i, 0)[0];
-            double h2Value = hist2.get(i, 0)[0];
-            difference += Math.abs(h2Value - h1Value);
+        List<Integer> result = new ArrayList<>();
+        if (detectorNum == 0) {
+            return result;
         }
 
-        if (isDrawChart) {
-            scores.add(difference);
+        // Minimal groups of detectors whose summed weight reaches the threshold
+        List<Integer> quorums = new ArrayList<>();
+        for (int group = 1; group < (1 << detectorNum); group++) {
+            if (weight(detectors, group) < threshold) continue;
+            boolean minimal = true;
+            for (int d = 0; d < detectorNum && minimal; d++) {
+                if ((group & (1 << d)) != 0 && weight(detectors, group & ~(1 << d)) >= threshold) minimal = false;
+            }
+            if (minimal) quorums.add(group);
         }
 
-        // If correlation is less than threshold, then a shot boundary has occurred
-        return difference > threshold;
-    }
-
-    private static boolean correlationBased(double threshold, boolean isDrawChart) {
-        double uCorrelation = Imgproc.compareHist(hist1, hist2, Imgproc.HISTCMP_CORREL);
-        double vCorrelation = Imgproc.compareHist(hist3, hist4, Imgproc.HISTCMP_CORREL);
-        double score = uCorrelation * vCorrelation;
-
-        if (isDrawChart) {
-            scores.add(score);
-            uScores.add(uCorrelation);
-            vScores.add(vCorrelation);
+        FrameBitSet all = new FrameBitSet(candidates.get(0).from(), candidates.get(0).size());
+        FrameBitSet[] dilated = new FrameBitSet[detectorNum];
+        for (int d = 0; d < detectorNum; d++) {
+            all.or(candidates.get(d));
+            dilated[d] = candidates.get(d).dilate(Stats.BIAS);
         }
 
-        // If correlation is less than threshold, then a shot boundary has occurred
-        return score < threshold;
-    }
-
-    private static boolean chiSquareBased(double threshold, boolean isDrawChart) {
-        double uCorrelation = Imgproc.compareHist(hist1, hist2, Imgproc.HISTCMP_CHISQR);
-        double vCorrelation = Imgproc.compareHist(hist3, hist4, Imgproc.HISTCMP_CHISQR);
-        double score = uCorrelation * vCorrelation;
+        for (int w = 0; w < all.wordCount(); w++) {
+            long word = all.word(w);
+            if (word == 0) continue;
 
-        if (isDrawChart) {
-            scores.add(score);
-            uScores.add(uCorrelation);
-            vScores.add(vCorrelation);
+            long accepted = 0;
+            for (int group : quorums) {
+                long agree = word;
+                for (int d = 0; d < detectorNum; d++) {
+                    if ((group & (1 << d)) != 0) agree &= dilated[d].word(w);
+                }
+                accepted |= agree;
+            }
+            while (accepted != 0) {
+                result.add(all.from() + (w << 6) + Long.numberOfTrailingZeros(accepted));
+                accepted &= accepted - 1;
+            }
         }
-
-        // If correlation is less than threshold, then a shot boundary has occurred
-        return score > threshold;
+        return result;
     }
 
-    private static List<Integer> vote(List<Integer> correlationShots, List<Integer> chiSquareShots,
-                                      List<Integer> differenceShots, List<Integer> pySceneShots, double threshold) {
-        List<Integer> result = new ArrayList<>();
-        Set<Integer> midRes = new HashSet<>();
-        Set<Integer> pyShots = new HashSet<>(pySceneShots);
-        Set<Integer> corrShots = new HashSet<>(correlationShots);
-        Set<Integer> chiShots = new HashSet<>(chiSquareShots);
-        Set<Integer> diffShots = new HashSet<>(differenceShots);
-        double pySceneWeight = 0.0;
-        double correlationWeight = 0.33;
-        double chiSquareWeight = 0.33;
-        double diffWeight = 0.33;
-        double currScore = 0;
-        boolean inPyScene = false;
-        boolean inCorrelation = false;
-        boolean inChiSquare = false;
-        boolean inDiff = false;
-
-
-        midRes.addAll(pyShots);
-        midRes.addAll(corrShots);
-        midRes.addAll(chiShots);
-        midRes.addAll(diffShots);
-
-        for (int value : midRes) {
-            currScore = 0;
-            inPyScene = false;
-            inCorrelation = false;
-            inChiSquare = false;
-            inDiff = false;
-
-            for (int i = -Stats.BIAS; i <= Stats.BIAS; i++) {
-                if (pyShots.contains(value + i)) inPyScene = true;
-                if (corrShots.contains(value + i)) inCorrelation = true;
-                if (chiShots.contains(value + i)) inChiSquare = true;
-                if (diffShots.contains(value + i)) inDiff = true;
-            }
-
-            if (inPyScene) currScore += pySceneWeight;
-            if (inCorrelation) currScore += correlationWeight;
-            if (inChiSquare) currScore += chiSquareWeight;
-            if (inDiff) currScore += diffWeight;
-
-            if (currScore >= threshold) result.add(value);
+    private static double weight(List<ShotDetectors.WeightedDetector> detectors, int group) {
+        double weight = 0;
+        for (int d = 0; d < detectors.size(); d++) {
+            if ((group & (1 << d)) != 0) weight += detectors.get(d).weight;
         }
-
-        Collections.sort(result);
-        return result;
+        return weight;
     }
 }
@@ -0,0 +1,173 @@
+package course.multimedia;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.SourceDataLine;
+import java.nio.ByteBuffer;
+
+/**
+ * Plays an {@link AudioTrack} through a {@link SourceDataLine} instead of loading it into a Clip.
+ * A reader thread copies the PCM payload into a bounded ring buffer and a writer thread feeds the line from it,
+ * so opening the player does not depend on the length of the audio. Seeking repositions the reader and
+ * discards whatever is still queued. The playback position is counted in sample frames played by the line.
+ */
+public class StreamingAudioPlayer {
+    private static final double RING_SECONDS = 0.5; // audio buffered ahead of the line
+    private static final double LINE_SECONDS = 0.1; // audio queued inside the line
+    private static final double CHUNK_SECONDS = 0.01; // audio handed to the line per write
+
+    private final ByteBuffer data;
+    private final int frameSize;
+    private final float sampleRate;
+    private final SourceDataLine line;
+
+    private final Object lock = new Object();
+    private final byte[] ring;
+    private int ringRead;
+    private int ringCount;
+    private long sourcePosition; // next byte of the payload to copy into the ring
+    private long seekGeneration;
+    private long basePositionFrames; // playback position at the last seek
+    private long lineFrameBase; // line frame position at the last seek
+    private boolean playing;
+    private boolean closed;
+
+    public StreamingAudioPlayer(AudioTrack track) throws LineUnavailableException {
+        AudioFormat format = track.getFormat();
+        this.data = track.getData();
+        this.frameSize = format.getFrameSize();
+        this.sampleRate = format.getSampleRate();
+        this.ring = new byte[bytesFor(RING_SECONDS)];
+
+        line = AudioSystem.getSourceDataLine(format);
+        line.open(format, bytesFor(LINE_SECONDS));
+        lineFrameBase = line.getLongFramePosition();
+
+        Thread reader = new Thread(this::readLoop, "audio-reader");
+        reader.setDaemon(true);
+        reader.start();
+        Thread writer = new Thread(this::writeLoop, "audio-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // Number of bytes holding the given duration, rounded to whole sample frames
+    private int bytesFor(double seconds) {
+        return Math.max(1, (int) (sampleRate * seconds)) * frameSize;
+    }
+
+    private void readLoop() {
+        synchronized (lock) {
+            while (true) {
+                while (!closed && (ringCount == ring.length || sourcePosition >= data.limit())) {
+                    waitOnLock();
+                }
+                if (closed) return;
+
+                int ringWrite = (ringRead + ringCount) % ring.length;
+                int n = (int) Math.min(Math.min(ring.length - ringCount, ring.length - ringWrite),
+                        data.limit() - sourcePosition);
+                data.get((int) sourcePosition, ring, ringWrite, n);
+                sourcePosition += n;
+                ringCount += n;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    private void writeLoop() {
+        byte[] chunk = new byte[bytesFor(CHUNK_SECONDS)];
+        while (true) {
+            int n;
+            long generation;
+            synchronized (lock) {
+                while (!closed && (!playing || ringCount == 0)) {
+                    waitOnLock();
+                }
+                if (closed) return;
+
+                n = Math.min(Math.min(chunk.length, ringCount), ring.length - ringRead);
+                System.arraycopy(ring, ringRead, chunk, 0, n);
+                ringRead = (ringRead + n) % ring.length;
+                ringCount -= n;
+                generation = seekGeneration;
+                lock.notifyAll();
+            }
+
+            // Blocks while the line is full, a seek flushes the line and makes it return early
+            line.write(chunk, 0, n);
+
+            synchronized (lock) {
+                if (generation != seekGeneration) {
+                    // The chunk belonged to the old position, drop whatever of it reached the line
+                    line.flush();
+                    lineFrameBase = line.getLongFramePosition();
+                }
+            }
+        }
+    }
+
+    private void waitOnLock() {
+        try {
+            lock.wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            closed = true;
+        }
+    }
+
+    public void start() {
+        synchronized (lock) {
+            playing = true;
+            line.start();
+            lock.notifyAll();
+        }
+    }
+
+    public void stop() {
+        synchronized (lock) {
+            playing = false;
+            line.stop();
+        }
+    }
+
+    /**
+     * Moves playback to the given position, keeping the current play/pause state.
+     */
+    public void setMicrosecondPosition(long microseconds) {
+        synchronized (lock) {
+            long frame = (long) (microseconds * (double) sampleRate / 1000000.0);
+            long position = Math.min(frame * frameSize, data.limit());
+
+            seekGeneration++;
+            ringRead = 0;
+            ringCount = 0;
+            sourcePosition = position;
+            line.flush();
+            basePositionFrames = position / frameSize;
+            lineFrameBase = line.getLongFramePosition();
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * @return the position of the sample frame being played, in microseconds
+     */
+    public long getMicrosecondPosition() {
+        synchronized (lock) {
+            long frames = basePositionFrames + Math.max(0, line.getLongFramePosition() - lineFrameBase);
+            return (long) (frames * 1000000.0 / sampleRate);
+        }
+    }
+
+    public void close() {
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+        line.stop();
+        line.flush();
+        line.close();
+    }
+}
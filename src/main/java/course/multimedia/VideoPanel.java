@@ -0,0 +1,112 @@
+package course.multimedia;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+
+/**
+ * Surface that shows the current video frame, scaled to fit the component with its aspect ratio kept.
+ * Changing the frame copies it into a buffer owned by the panel, so the caller can reuse its image right away,
+ * and only repaints the area covered by the video, without changing the layout.
+ * The scaled copy is drawn once per frame into a buffer that is only reallocated when the component is resized,
+ * so painting the same frame again, e.g. when the window is uncovered, just copies that buffer.
+ */
+public class VideoPanel extends JComponent {
+    private final int videoWidth;
+    private final int videoHeight;
+
+    // Written by the playback thread, read on the EDT, both under the lock
+    private final Object lock = new Object();
+    private final BufferedImage frame;
+    private boolean hasFrame;
+    private long frameVersion;
+    // Only used on the EDT
+    private BufferedImage scaled;
+    private long scaledVersion = -1;
+
+    public VideoPanel(int videoWidth, int videoHeight) {
+        this.videoWidth = videoWidth;
+        this.videoHeight = videoHeight;
+        this.frame = new BufferedImage(videoWidth, videoHeight, BufferedImage.TYPE_INT_RGB);
+        setOpaque(true);
+        setBackground(Color.WHITE);
+        setPreferredSize(new Dimension(videoWidth, videoHeight));
+    }
+
+    /**
+     * Shows the frame at the next paint. Can be called from any thread, repaints are coalesced by Swing,
+     * so a playback thread that runs ahead of the EDT only gets its latest frame painted.
+     * The image is copied before returning and is not used afterwards.
+     */
+    public void setFrame(BufferedImage image) {
+        synchronized (lock) {
+            copy(image, frame);
+            hasFrame = true;
+            frameVersion++;
+        }
+        Rectangle area = videoArea();
+        repaint(area.x, area.y, area.width, area.height);
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        g.setColor(getBackground());
+        g.fillRect(0, 0, getWidth(), getHeight());
+
+        Rectangle area = videoArea();
+        if (area.width <= 0 || area.height <= 0) {
+            return;
+        }
+        synchronized (lock) {
+            if (!hasFrame) {
+                return;
+            }
+            if (area.width == videoWidth && area.height == videoHeight) {
+                g.drawImage(frame, area.x, area.y, null);
+                return;
+            }
+            scale(area);
+        }
+        g.drawImage(scaled, area.x, area.y, null);
+    }
+
+    // Redraws the scaled copy if the frame or the size changed, must hold the lock
+    private void scale(Rectangle area) {
+        if (scaled == null || scaled.getWidth() != area.width || scaled.getHeight() != area.height) {
+            scaled = new BufferedImage(area.width, area.height, BufferedImage.TYPE_INT_RGB);
+            scaledVersion = -1;
+        }
+        if (scaledVersion != frameVersion) {
+            Graphics2D g2 = scaled.createGraphics();
+            g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g2.drawImage(frame, 0, 0, area.width, area.height, null);
+            g2.dispose();
+            scaledVersion = frameVersion;
+        }
+    }
+
+    private static void copy(BufferedImage src, BufferedImage dst) {
+        if (src.getType() == BufferedImage.TYPE_INT_RGB && src.getWidth() == dst.getWidth() && src.getHeight() == dst.getHeight()) {
+            int[] srcPixels = ((DataBufferInt) src.getRaster().getDataBuffer()).getData();
+            int[] dstPixels = ((DataBufferInt) dst.getRaster().getDataBuffer()).getData();
+            System.arraycopy(srcPixels, 0, dstPixels, 0, dstPixels.length);
+        } else {
+            Graphics2D g2 = dst.createGraphics();
+            g2.drawImage(src, 0, 0, dst.getWidth(), dst.getHeight(), null);
+            g2.dispose();
+        }
+    }
+
+    // Largest centered rectangle with the video's aspect ratio
+    private Rectangle videoArea() {
+        int width = getWidth();
+        int height = getHeight();
+        if ((long) width * videoHeight > (long) height * videoWidth) {
+            width = height * videoWidth / videoHeight;
+        } else {
+            height = width * videoHeight / videoWidth;
+        }
+        return new Rectangle((getWidth() - width) / 2, (getHeight() - height) / 2, width, height);
+    }
+}